@@ -0,0 +1,62 @@
+package modeladequacy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import beast.core.parameter.IntegerParameter;
+
+/** pattern access through the Alignment interface of AlignmentList, as done when a likelihood sets up its tips **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AlignmentListBenchmark {
+	@Param({"16", "64", "256"})
+	int taxonCount;
+
+	@Param({"500", "5000"})
+	int siteCount;
+
+	AlignmentList list;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		SyntheticData synthetic = new SyntheticData(taxonCount, siteCount);
+		list = new AlignmentList(synthetic.simulateStore(2));
+		IntegerParameter indicator = new IntegerParameter();
+		indicator.initByName("value", 0, "lower", 0, "upper", 1);
+		list.indicatorInput.setValue(indicator, list);
+		list.initAndValidate();
+	}
+
+	@Benchmark
+	public long getPatternByTaxon() {
+		long sum = 0;
+		int patternCount = list.getPatternCount();
+		for (int j = 0; j < taxonCount; j++) {
+			for (int i = 0; i < patternCount; i++) {
+				sum += list.getPattern(j, i);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long getPatternByColumn() {
+		long sum = 0;
+		int patternCount = list.getPatternCount();
+		for (int i = 0; i < patternCount; i++) {
+			int [] pattern = list.getPattern(i);
+			sum += pattern[0] + list.getPatternWeight(i);
+		}
+		return sum;
+	}
+}
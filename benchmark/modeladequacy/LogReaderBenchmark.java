@@ -0,0 +1,86 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import beast.evolution.tree.Tree;
+
+/** indexing log files, and reading single entries from them **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogReaderBenchmark {
+	@Param({"20", "100"})
+	int taxonCount;
+
+	@Param({"1000", "10000"})
+	int sampleCount;
+
+	File dir;
+	TraceLogReader traceLog;
+	TreeLogReader treeLog;
+	double [] values;
+	Random random;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("ma-benchmark").toFile();
+		new SyntheticData(taxonCount, 1).writeLogs(dir, sampleCount);
+		traceLog = new TraceLogReader(new File(dir, "trace.log"), 10);
+		for (int i = 0; i < traceLog.getLabels().size(); i++) {
+			traceLog.require(i);
+		}
+		treeLog = new TreeLogReader(new File(dir, "trees.trees"), 10);
+		values = new double[traceLog.getLabels().size()];
+		random = new Random(SyntheticData.SEED);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		traceLog.close();
+		treeLog.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public int scanTraceLog() throws IOException {
+		TraceLogReader reader = new TraceLogReader(new File(dir, "trace.log"), 10);
+		reader.close();
+		return reader.getSampleCount();
+	}
+
+	@Benchmark
+	public int scanTreeLog() throws IOException {
+		TreeLogReader reader = new TreeLogReader(new File(dir, "trees.trees"), 10);
+		reader.close();
+		return reader.getSampleCount();
+	}
+
+	@Benchmark
+	public double[] readTraceEntry() throws IOException {
+		traceLog.read(random.nextInt(traceLog.getSampleCount()), values);
+		return values;
+	}
+
+	@Benchmark
+	public Tree readTree() throws IOException {
+		return treeLog.read(random.nextInt(treeLog.getSampleCount()));
+	}
+}
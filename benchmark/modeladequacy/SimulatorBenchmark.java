@@ -0,0 +1,42 @@
+package modeladequacy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** simulating a single alignment straight into site patterns **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SimulatorBenchmark {
+	@Param({"16", "64", "256"})
+	int taxonCount;
+
+	@Param({"500", "5000"})
+	int siteCount;
+
+	ReplicateSimulator simulator;
+	ReplicateStore store;
+	int replicate;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		SyntheticData synthetic = new SyntheticData(taxonCount, siteCount);
+		simulator = new ReplicateSimulator(synthetic.tree, synthetic.siteModel, null, synthetic.data);
+		store = new ReplicateStore(synthetic.data);
+	}
+
+	@Benchmark
+	public ReplicateStore.Replicate simulate() {
+		return simulator.simulate(new Random(ReplicateSimulator.replicateSeed(SyntheticData.SEED, replicate++)), store);
+	}
+}
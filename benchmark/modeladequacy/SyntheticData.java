@@ -0,0 +1,115 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+/**
+ * Synthetic trees, alignments, replicates and log files for benchmarks.
+ * Everything is generated from a fixed seed, so runs are comparable.
+ */
+class SyntheticData {
+	final static long SEED = 127;
+
+	final List<String> taxa;
+	final Tree tree;
+	final SiteModel siteModel;
+	final Alignment data;
+
+	SyntheticData(int taxonCount, int siteCount) {
+		Random random = new Random(SEED);
+		taxa = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			taxa.add("t" + i);
+		}
+		tree = new TreeParser(taxa, newick(taxonCount, random), 1, false);
+
+		JukesCantor jc = new JukesCantor();
+		jc.initAndValidate();
+		siteModel = new SiteModel();
+		siteModel.initByName("substModel", jc, "gammaCategoryCount", 4, "shape", new RealParameter("0.5"));
+
+		List<Sequence> sequences = new ArrayList<>();
+		for (String taxon : taxa) {
+			StringBuilder seq = new StringBuilder();
+			for (int i = 0; i < siteCount; i++) {
+				seq.append("ACGT".charAt(random.nextInt(4)));
+			}
+			sequences.add(new Sequence(taxon, seq.toString()));
+		}
+		data = new Alignment();
+		data.initByName("sequence", sequences, "dataType", "nucleotide");
+	}
+
+	/** random ultrametric-ish tree with numeric labels 1..taxonCount, built by joining random pairs **/
+	static String newick(int taxonCount, Random random) {
+		List<String> nodes = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		for (int i = 1; i <= taxonCount; i++) {
+			nodes.add(i + "");
+			heights.add(0.0);
+		}
+		double height = 0;
+		while (nodes.size() > 1) {
+			height += random.nextDouble() * 0.1;
+			int i = random.nextInt(nodes.size());
+			String left = nodes.remove(i);
+			double leftHeight = heights.remove(i);
+			int j = random.nextInt(nodes.size());
+			String right = nodes.remove(j);
+			double rightHeight = heights.remove(j);
+			nodes.add("(" + left + ":" + (height - leftHeight) + "," + right + ":" + (height - rightHeight) + ")");
+			heights.add(height);
+		}
+		return nodes.get(0) + ";";
+	}
+
+	/** store with replicateCount alignments simulated on the synthetic tree **/
+	ReplicateStore simulateStore(int replicateCount) {
+		ReplicateStore store = new ReplicateStore(data);
+		ReplicateSimulator simulator = new ReplicateSimulator(tree, siteModel, null, data);
+		for (int i = 0; i < replicateCount; i++) {
+			store.add(simulator.simulate(new Random(ReplicateSimulator.replicateSeed(SEED, i)), store));
+		}
+		return store;
+	}
+
+	/** write a trace log and NEXUS tree log with sampleCount entries to dir **/
+	void writeLogs(File dir, int sampleCount) throws IOException {
+		Random random = new Random(SEED);
+		PrintStream trace = new PrintStream(new File(dir, "trace.log"));
+		trace.println("# synthetic trace log");
+		trace.println("Sample\tposterior\tlikelihood\tprior\tgammaShape\tclockRate");
+		for (int i = 0; i < sampleCount; i++) {
+			trace.println(i * 1000 + "\t" + (-1e4 - random.nextDouble()) + "\t" + (-9e3 - random.nextDouble()) + "\t" + (-1e3 - random.nextDouble()) +
+					"\t" + random.nextDouble() + "\t" + random.nextDouble());
+		}
+		trace.close();
+
+		PrintStream trees = new PrintStream(new File(dir, "trees.trees"));
+		trees.println("#NEXUS");
+		trees.println();
+		trees.println("Begin trees;");
+		trees.println("\tTranslate");
+		for (int i = 0; i < taxa.size(); i++) {
+			trees.println("\t\t" + (i + 1) + " " + taxa.get(i) + (i < taxa.size() - 1 ? "," : ""));
+		}
+		trees.println(";");
+		for (int i = 0; i < sampleCount; i++) {
+			trees.println("tree STATE_" + i * 1000 + " = " + newick(taxa.size(), random));
+		}
+		trees.println("End;");
+		trees.close();
+	}
+}
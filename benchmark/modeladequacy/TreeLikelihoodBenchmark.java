@@ -0,0 +1,79 @@
+package modeladequacy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import beast.core.parameter.IntegerParameter;
+import beast.evolution.likelihood.MATreeLikelihood;
+
+/** switching MATreeLikelihood to the next alignment and recalculating, as IndicatorOperator moves do **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TreeLikelihoodBenchmark {
+	@Param({"16", "64"})
+	int taxonCount;
+
+	@Param({"500", "5000"})
+	int siteCount;
+
+	@Param({"10", "100"})
+	int replicateCount;
+
+	beast.core.State state;
+	IntegerParameter indicator;
+	MATreeLikelihood likelihood;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		SyntheticData synthetic = new SyntheticData(taxonCount, siteCount);
+		AlignmentList list = new AlignmentList(synthetic.simulateStore(replicateCount));
+		indicator = new IntegerParameter();
+		indicator.initByName("value", 0, "lower", 0, "upper", replicateCount - 1);
+		list.indicatorInput.setValue(indicator, list);
+		list.initAndValidate();
+
+		likelihood = new MATreeLikelihood();
+		likelihood.initByName("data", list, "tree", synthetic.tree, "siteModel", synthetic.siteModel);
+
+		state = new beast.core.State();
+		state.initByName("stateNode", indicator);
+		state.initialise();
+		state.setPosterior(likelihood);
+		state.robustlyCalcPosterior(likelihood);
+	}
+
+	@Benchmark
+	public double switchAlignment() {
+		state.store(0);
+		indicator.setValue((indicator.getValue() + 1) % replicateCount);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double logP = likelihood.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		return logP;
+	}
+
+	@Benchmark
+	public double switchAndRestore() {
+		state.store(0);
+		indicator.setValue((indicator.getValue() + 1) % replicateCount);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double logP = likelihood.calculateLogP();
+		state.restore();
+		state.restoreCalculationNodes();
+		state.setEverythingDirty(false);
+		return logP;
+	}
+}
@@ -1,29 +1,259 @@
 package beast.evolution.likelihood;
 
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.util.Log;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
 import beast.evolution.tree.Tree;
+import modeladequacy.AlignmentList;
+import modeladequacy.ReplicateStore;
+
+@Description("Tree likelihood over an AlignmentList, that efficiently switches between alignments")
+public class MATreeLikelihood extends beast.evolution.likelihood.TreeLikelihood {
+	final public Input<Integer> cacheSizeInput = new Input<>("cacheSize", "maximum memory (in MB) used for caching likelihoods of alignments that are revisited "
+			+ "while tree and parameters are unchanged. Root partials are cached as well if they fit for every alignment. "
+			+ "Not used with BEAGLE (default 0, no caching)", 0);
+	final public Input<Integer> logAlignmentsInput = new Input<>("logAlignments", "number of alignments (starting at the first) whose likelihoods under the current "
+			+ "tree and parameters are logged as separate columns. They are calculated when logging, together in a single pass, and do not affect the likelihood "
+			+ "the MCMC runs on. Memory use grows linearly with the number of alignments. Negative for all alignments (default 0, none)", 0);
 
-public class MATreeLikelihood extends beast.evolution.likelihood.TreeLikelihood {	
 	boolean updateAlignment = false;
-	
-	
-	
+
+	// Tip states for the BeerLikelihoodCore are kept in two buffer sets: one for the
+	// current alignment, and one for the alignment at the last store(). Swapping
+	// alignments fills the spare set and points the core at it, restoring only
+	// points the core back at the stored set.
+	BeerLikelihoodCore beerCore;
+	int [][][] tipStates;
+	// replicate held by each buffer set, and number of patterns in it that are not padding
+	int [] tipReplicate;
+	int [] tipPatternCount;
+	int currentTips;
+	int storedTips;
+	// taxon index in the alignment for every leaf node
+	int [] leafTaxon;
+	// state used by the likelihood core for every code (as in TreeLikelihood.setStates)
+	int [] codeMap = new int[0];
+
+	// evaluates likelihoods of a range of alignments for logging
+	ReplicateBatchLikelihood batch;
+
+	// number of alignment switches, and of switches undone by restore
+	long swapCount;
+	long restoreResetCount;
+
+	// replicate last uploaded to beagle
+	int beagleReplicate = -1;
+
+	// LRU cache of likelihoods by alignment, for the accepted version of the state of tree and parameters.
+	// Likelihoods calculated for a proposed version are kept aside, and only enter the cache (replacing
+	// all entries of the old version) once that version is accepted, so rejected proposals cost no space.
+	LinkedHashMap<Integer, CacheEntry> cache;
+	long cacheCapacity;
+	long cacheBytes;
+	boolean cachePartials;
+	long cacheVersion;
+	CacheEntry pendingEntry;
+	int pendingAlignment;
+	long pendingVersion = -1;
+	long stateVersion;
+	long storedStateVersion;
+	long versionCounter;
+	long cacheHits;
+	long cacheMisses;
+	// set when logP came from the cache, so partials in the likelihood core are out of date
+	boolean coreIsStale;
+	boolean storedCoreIsStale;
+
+	static class CacheEntry {
+		final double logP;
+		final double [] patternLogLikelihoods;
+		final double [] rootPartials;
+
+		CacheEntry(double logP, double [] patternLogLikelihoods, double [] rootPartials) {
+			this.logP = logP;
+			this.patternLogLikelihoods = patternLogLikelihoods;
+			this.rootPartials = rootPartials;
+		}
+
+		long size() {
+			long size = 64;
+			if (patternLogLikelihoods != null) {
+				size += 16 + 8L * patternLogLikelihoods.length + 16 + 8L * rootPartials.length;
+			}
+			return size;
+		}
+	}
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		if (dataInput.get() instanceof AlignmentList && beagle == null &&
+				likelihoodCore instanceof BeerLikelihoodCore &&
+				!m_useAmbiguities.get() && !m_useTipLikelihoods.get()) {
+			initTipBuffers();
+		}
+		if (cacheSizeInput.get() > 0 && beagle != null) {
+			Log.warning(getID() + ": likelihoods are not cached when using BEAGLE");
+		}
+		if (cacheSizeInput.get() > 0 && beagle == null && dataInput.get() instanceof AlignmentList) {
+			cache = new LinkedHashMap<>(16, 0.75f, true);
+			cacheCapacity = cacheSizeInput.get() * 1024L * 1024L;
+			long fullEntry = new CacheEntry(0, patternLogLikelihoods, m_fRootPartials).size();
+			cachePartials = fullEntry * ((AlignmentList) dataInput.get()).getReplicateCount() <= cacheCapacity;
+		}
+		if (logAlignmentsInput.get() != 0) {
+			if (!(dataInput.get() instanceof AlignmentList)) {
+				throw new IllegalArgumentException("logAlignments requires data to be an AlignmentList");
+			}
+			// the batch core peels tip states only
+			if (m_useAmbiguities.get() || m_useTipLikelihoods.get()) {
+				throw new IllegalArgumentException("logAlignments cannot be used with useAmbiguities or useTipLikelihoods");
+			}
+			if (dataInput.get().isAscertained) {
+				throw new IllegalArgumentException("logAlignments cannot be used with ascertained data");
+			}
+			AlignmentList data = (AlignmentList) dataInput.get();
+			int size = logAlignmentsInput.get() < 0 ? data.getReplicateCount() : Math.min(logAlignmentsInput.get(), data.getReplicateCount());
+			batch = new ReplicateBatchLikelihood(this, data, 0, size, getLeafTaxa());
+		}
+	}
+
+	private int [] getLeafTaxa() {
+		if (leafTaxon == null) {
+			Tree tree = (Tree) treeInput.get();
+			leafTaxon = new int[tree.getLeafNodeCount()];
+			for (int i = 0; i < leafTaxon.length; i++) {
+				leafTaxon[i] = dataInput.get().getTaxonIndex(tree.getNode(i).getID());
+			}
+		}
+		return leafTaxon;
+	}
+
+	private void initTipBuffers() {
+		AlignmentList data = (AlignmentList) dataInput.get();
+		Tree tree = (Tree) treeInput.get();
+		int leafCount = tree.getLeafNodeCount();
+		int patternCount = data.getPatternCount();
+		beerCore = (BeerLikelihoodCore) likelihoodCore;
+		getLeafTaxa();
+		tipStates = new int[2][leafCount][patternCount];
+		for (int i = 0; i < leafCount; i++) {
+			Arrays.fill(tipStates[0][i], data.getMaxStateCount());
+			Arrays.fill(tipStates[1][i], data.getMaxStateCount());
+		}
+		tipReplicate = new int[]{-1, -1};
+		tipPatternCount = new int[2];
+		currentTips = 0;
+		storedTips = 0;
+		loadTips(0, data.getCurrentReplicate(), data.getCurrentIndex());
+		pointCoreAt(0);
+	}
+
 	@Override
 	public double calculateLogP() {
-		// TODO Auto-generated method stub
-		return super.calculateLogP();
+		if (cache == null) {
+			return super.calculateLogP();
+		}
+		int alignment = ((AlignmentList) dataInput.get()).getCurrentIndex();
+		CacheEntry entry = null;
+		if (stateVersion == cacheVersion) {
+			entry = cache.get(alignment);
+		} else if (stateVersion == pendingVersion && alignment == pendingAlignment) {
+			entry = pendingEntry;
+		}
+		if (entry != null) {
+			cacheHits++;
+			logP = entry.logP;
+			if (entry.patternLogLikelihoods != null) {
+				System.arraycopy(entry.patternLogLikelihoods, 0, patternLogLikelihoods, 0, patternLogLikelihoods.length);
+				System.arraycopy(entry.rootPartials, 0, m_fRootPartials, 0, m_fRootPartials.length);
+			}
+			coreIsStale = true;
+			return logP;
+		}
+		if (coreIsStale) {
+			hasDirt = Tree.IS_FILTHY;
+			coreIsStale = false;
+		}
+		cacheMisses++;
+		super.calculateLogP();
+		if (cachePartials) {
+			entry = new CacheEntry(logP, patternLogLikelihoods.clone(), m_fRootPartials.clone());
+		} else {
+			entry = new CacheEntry(logP, null, null);
+		}
+		if (stateVersion == cacheVersion) {
+			putInCache(alignment, entry);
+		} else {
+			pendingEntry = entry;
+			pendingAlignment = alignment;
+			pendingVersion = stateVersion;
+		}
+		return logP;
+	}
+
+	private void putInCache(int alignment, CacheEntry entry) {
+		CacheEntry old = cache.put(alignment, entry);
+		if (old != null) {
+			cacheBytes -= old.size();
+		}
+		cacheBytes += entry.size();
+		Iterator<CacheEntry> iterator = cache.values().iterator();
+		while (cacheBytes > cacheCapacity && iterator.hasNext()) {
+			cacheBytes -= iterator.next().size();
+			iterator.remove();
+		}
 	}
-	
+
+	/** make the cache hold entries of the accepted version of the state **/
+	private void acceptCacheVersion() {
+		if (stateVersion != cacheVersion) {
+			// entries of the old version can never be hit again
+			cache.clear();
+			cacheBytes = 0;
+			cacheVersion = stateVersion;
+			if (pendingVersion == stateVersion) {
+				putInCache(pendingAlignment, pendingEntry);
+			}
+		}
+		pendingEntry = null;
+		pendingVersion = -1;
+	}
+
 	private void resetAlignment() {
-		if (beagle != null) {
-			Tree tree = (Tree) treeInput.get();			
+		if (beerCore != null) {
+			// use buffer set that is not needed for restore, unless it is the one holding the new alignment
+			AlignmentList data = (AlignmentList) dataInput.get();
+			int replicate = data.getCurrentIndex();
+			int target = tipReplicate[storedTips] == replicate ? storedTips : 1 - storedTips;
+			if (tipReplicate[target] != replicate) {
+				loadTips(target, data.getCurrentReplicate(), replicate);
+			}
+			pointCoreAt(target);
+		} else if (beagle != null) {
+			Alignment data = dataInput.get();
+			if (data instanceof AlignmentList && ((AlignmentList) data).getCurrentIndex() == beagleReplicate) {
+				return;
+			}
+			Tree tree = (Tree) treeInput.get();
 	        for (int i = 0; i < tree.getLeafNodeCount(); i++) {
-	        	int taxon = dataInput.get().getTaxonIndex(tree.getNode(i).getID()); 
+	        	int taxon = data.getTaxonIndex(tree.getNode(i).getID());
 		        if (m_useAmbiguities.get() || m_useTipLikelihoods.get()) {
 	                beagle.setPartials(beagle.beagle, i, taxon);
 	            } else {
 	            	beagle.setStates(beagle.beagle, i, taxon);
 	            }
 	        }
+	        if (data instanceof AlignmentList) {
+	        	beagleReplicate = ((AlignmentList) data).getCurrentIndex();
+	        }
 		} else {
 	        if (m_useAmbiguities.get() || m_useTipLikelihoods.get()) {
 	            setPartials(treeInput.get().getRoot(), dataInput.get().getPatternCount());
@@ -32,32 +262,139 @@ public class MATreeLikelihood extends beast.evolution.likelihood.TreeLikelihood
 	        }
 		}
 	}
-	
+
+	/**
+	 * fill buffer set with tip states of the replicate, read straight from the store so
+	 * the alignment is not flattened first. Rewrites all patterns, and pads the patterns
+	 * the previous alignment in the set had beyond those of this one.
+	 */
+	private void loadTips(int set, ReplicateStore.Replicate replicate, int index) {
+		int patternCount = replicate.getPatternCount();
+		int unknown = dataInput.get().getMaxStateCount();
+		for (int i = 0; i < leafTaxon.length; i++) {
+			int [] states = tipStates[set][i];
+			int taxon = leafTaxon[i];
+			for (int k = 0; k < patternCount; k++) {
+				int code = replicate.get(taxon, k);
+				states[k] = code >= 0 && code < codeMap.length ? codeMap[code] : mapCode(code);
+			}
+			if (tipPatternCount[set] > patternCount) {
+				Arrays.fill(states, patternCount, tipPatternCount[set], unknown);
+			}
+		}
+		tipReplicate[set] = index;
+		tipPatternCount[set] = patternCount;
+	}
+
+	int mapCode(int code) {
+		if (code < 0) {
+			return dataInput.get().getMaxStateCount();
+		}
+		if (code >= codeMap.length) {
+			int old = codeMap.length;
+			codeMap = Arrays.copyOf(codeMap, code + 1);
+			DataType dataType = dataInput.get().getDataType();
+			for (int c = old; c <= code; c++) {
+				int [] statesForCode = dataType.getStatesForCode(c);
+				codeMap[c] = statesForCode.length == 1 ? statesForCode[0] : c;
+			}
+		}
+		return codeMap[code];
+	}
+
+	private void pointCoreAt(int set) {
+		for (int i = 0; i < leafTaxon.length; i++) {
+			beerCore.states[i] = tipStates[set][i];
+		}
+		currentTips = set;
+	}
+
 	@Override
-	protected boolean requiresRecalculation() {		
+	protected boolean requiresRecalculation() {
 		boolean isDirty = super.requiresRecalculation();
+		if (cache != null && (treeInput.get().somethingIsDirty() || m_siteModel.isDirtyCalculation() ||
+				(branchRateModel != null && branchRateModel.isDirtyCalculation()))) {
+			// new values for tree or parameters
+			stateVersion = ++versionCounter;
+		}
 		if (dataInput.get().isDirtyCalculation()) {
+			swapCount++;
 			resetAlignment();
 			isDirty = true;
 			updateAlignment = true;
 		}
 		return isDirty;
 	}
-	
+
 	@Override
 	public void restore() {
 		if (updateAlignment) {
-			resetAlignment();
+			restoreResetCount++;
+			if (beerCore != null) {
+				pointCoreAt(storedTips);
+			} else {
+				resetAlignment();
+			}
 		}
 		super.restore();
 		updateAlignment = false;
+		stateVersion = storedStateVersion;
+		// partials restored into the core are as stale as they were at store()
+		coreIsStale = storedCoreIsStale;
+		if (cache != null) {
+			// likelihood of the rejected version is of no further use
+			pendingEntry = null;
+			pendingVersion = -1;
+		}
 	}
-	
+
 	@Override
 	public void store() {
 		super.store();
 		updateAlignment = false;
+		storedTips = currentTips;
+		storedStateVersion = stateVersion;
+		storedCoreIsStale = coreIsStale;
+		if (cache != null) {
+			// store() happens at the start of a step, so the state is the accepted one
+			acceptCacheVersion();
+		}
+	}
+
+	public long getSwapCount() {
+		return swapCount;
+	}
+
+	public long getRestoreResetCount() {
+		return restoreResetCount;
+	}
+
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		super.init(out);
+		if (batch != null) {
+			for (int i = batch.from; i < batch.to; i++) {
+				out.print(getID() + ".alignment" + i + "\t");
+			}
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		super.log(sample, out);
+		if (batch != null) {
+			for (double logP : batch.calculateLogPs()) {
+				out.print(logP + "\t");
+			}
+		}
 	}
-	
 
 }
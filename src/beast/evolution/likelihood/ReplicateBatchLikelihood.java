@@ -0,0 +1,167 @@
+package beast.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.core.util.Log;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import modeladequacy.AlignmentList;
+import modeladequacy.ReplicateStore;
+
+/**
+ * Calculates likelihoods of a range of alignments of an AlignmentList in a
+ * single peeling pass, for logging them next to the likelihood of the current
+ * alignment. Patterns of all alignments in the range are put
+ * together in one pattern set, so transition matrices are calculated once,
+ * and per alignment log likelihoods are obtained by summing over its part
+ * of the pattern set.
+ */
+class ReplicateBatchLikelihood {
+	final MATreeLikelihood treeLikelihood;
+	final int from;
+	final int to;
+	final int stateCount;
+	final int patternCount;
+	// first pattern of every alignment in the combined pattern set
+	final int [] offsets;
+	final int [] weights;
+	// pattern * stateCount + state for every constant pattern
+	final int [] constantPatterns;
+
+	final LikelihoodCore core;
+	final double [] probabilities;
+	final double [] rootPartials;
+	final double [] patternLogLikelihoods;
+	// result of calculateLogPs(), reused
+	final double [] logPs;
+	double scale = 1.0;
+
+	ReplicateBatchLikelihood(MATreeLikelihood treeLikelihood, AlignmentList data, int from, int to, int [] leafTaxon) {
+		this.treeLikelihood = treeLikelihood;
+		this.from = from;
+		this.to = to;
+		ReplicateStore store = data.getReplicateStore();
+		stateCount = data.getMaxStateCount();
+
+		offsets = new int[to - from + 1];
+		for (int r = from; r < to; r++) {
+			offsets[r - from + 1] = offsets[r - from] + store.get(r).getPatternCount();
+		}
+		patternCount = offsets[to - from];
+		weights = new int[patternCount];
+		for (int r = from; r < to; r++) {
+			System.arraycopy(store.get(r).getWeights(), 0, weights, offsets[r - from], store.get(r).getPatternCount());
+		}
+
+		Tree tree = (Tree) treeLikelihood.treeInput.get();
+		int nodeCount = tree.getNodeCount();
+		int categoryCount = treeLikelihood.m_siteModel.getCategoryCount();
+		core = stateCount == 4 ? new BeerLikelihoodCore4() : new BeerLikelihoodCore(stateCount);
+		core.initialize(nodeCount, patternCount, categoryCount, true, false);
+		for (int i = tree.getLeafNodeCount(); i < nodeCount; i++) {
+			core.createNodePartials(i);
+		}
+
+		// tip states of all alignments in the batch, one after the other
+		int [][] tips = new int[leafTaxon.length][patternCount];
+		for (int i = 0; i < leafTaxon.length; i++) {
+			for (int r = from; r < to; r++) {
+				store.get(r).getStates(leafTaxon[i], tips[i], offsets[r - from]);
+			}
+			for (int k = 0; k < patternCount; k++) {
+				tips[i][k] = treeLikelihood.mapCode(tips[i][k]);
+			}
+			core.setNodeStates(i, tips[i]);
+		}
+
+		List<Integer> constant = new ArrayList<>();
+		for (int k = 0; k < patternCount; k++) {
+			int state = tips[0][k];
+			for (int i = 1; i < tips.length && state < stateCount; i++) {
+				if (tips[i][k] != state) {
+					state = stateCount;
+				}
+			}
+			if (state < stateCount) {
+				constant.add(k * stateCount + state);
+			}
+		}
+		constantPatterns = new int[constant.size()];
+		for (int k = 0; k < constantPatterns.length; k++) {
+			constantPatterns[k] = constant.get(k);
+		}
+
+		probabilities = new double[(stateCount + 1) * (stateCount + 1)];
+		rootPartials = new double[patternCount * stateCount];
+		patternLogLikelihoods = new double[patternCount];
+		logPs = new double[to - from];
+	}
+
+	/** log likelihoods of alignments from..to-1 given the current state. NB: the returned array is reused by later calls **/
+	double [] calculateLogPs() {
+		calc();
+		for (double logP : logPs) {
+			if (logP == Double.NEGATIVE_INFINITY && scale < 10) {
+				scale *= 1.01;
+				Log.warning.println("Turning on scaling in batch likelihood to prevent numeric instability " + scale);
+				core.setUseScaling(scale);
+				return calc();
+			}
+		}
+		return logPs;
+	}
+
+	private double [] calc() {
+		Tree tree = (Tree) treeLikelihood.treeInput.get();
+		SiteModel.Base siteModel = treeLikelihood.m_siteModel;
+		BranchRateModel branchRateModel = treeLikelihood.branchRateModel;
+
+		for (Node node : tree.getNodesAsArray()) {
+			if (!node.isRoot()) {
+				int nr = node.getNr();
+				double branchRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+				core.setNodeMatrixForUpdate(nr);
+				for (int i = 0; i < siteModel.getCategoryCount(); i++) {
+					double jointBranchRate = siteModel.getRateForCategory(i, node) * branchRate;
+					siteModel.getSubstitutionModel().getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(), jointBranchRate, probabilities);
+					core.setNodeMatrix(nr, i, probabilities);
+				}
+			}
+		}
+		traverse(tree.getRoot());
+
+		Node root = tree.getRoot();
+		core.integratePartials(root.getNr(), siteModel.getCategoryProportions(root), rootPartials);
+		double proportionInvariant = siteModel.getProportionInvariant();
+		if (proportionInvariant > 0) {
+			for (int i : constantPatterns) {
+				rootPartials[i] += proportionInvariant;
+			}
+		}
+		core.calculateLogLikelihoods(rootPartials, siteModel.getSubstitutionModel().getFrequencies(), patternLogLikelihoods);
+
+		for (int r = 0; r < logPs.length; r++) {
+			double logP = 0;
+			for (int k = offsets[r]; k < offsets[r + 1]; k++) {
+				logP += patternLogLikelihoods[k] * weights[k];
+			}
+			logPs[r] = logP;
+		}
+		return logPs;
+	}
+
+	private void traverse(Node node) {
+		if (node.isLeaf()) {
+			return;
+		}
+		Node child1 = node.getLeft();
+		Node child2 = node.getRight();
+		traverse(child1);
+		traverse(child2);
+		core.setNodePartialsForUpdate(node.getNr());
+		core.calculatePartials(child1.getNr(), child2.getNr(), node.getNr());
+	}
+}
@@ -1,7 +1,10 @@
 package modeladequacy;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -15,122 +18,287 @@ import beast.evolution.datatype.DataType;
 @Description("Alignment holding a list of alignments, indexed by an indicator")
 public class AlignmentList extends Alignment {
 	final public Input<List<Alignment>> alignmentsInput = new Input<>("alignment", "set of alignments making up the AlignmentList", new ArrayList<>());
+	final public Input<File> replicatesInput = new Input<>("replicates", "binary replicate file to take the alignments from, instead of the alignment inputs");
+	final public Input<Integer> partitionInput = new Input<>("partition", "partition in the replicate file to take the alignments from", 0);
 	final public Input<IntegerParameter> indicatorInput = new Input<>("indicator", "indicates which of the alignments of the list is the current alignment", Validate.REQUIRED);
-	
+
 	IntegerParameter indicator;
-	List<Alignment> alignments;
-	Alignment currentAlignment;
+	ReplicateStore store;
+	ReplicateStore.Replicate currentAlignment;
 	int prevAlignment;
 	int patternCount;
 	int [] nullPattern;
-	
+	// buffer returned by getPattern(int)
+	int [] pattern;
+	List<Integer> stateCounts;
+
+	/**
+	 * Patterns and weights of a single replicate in contiguous arrays, padded to
+	 * the pattern count of the AlignmentList with unknown states and zero weights,
+	 * so they can be read in bulk and without bounds checks on the replicate.
+	 * Pattern k of taxon j is at patterns[j * stride + k].
+	 */
+	public static class Flattened {
+		public final int [] patterns;
+		public final int [] weights;
+		public final int stride;
+		// replicate held, its index in the store, whether the arrays hold its patterns and weights yet,
+		// and number of patterns and weights that are not padding
+		ReplicateStore.Replicate source;
+		int replicate = -1;
+		boolean flattened;
+		boolean weighted;
+		int patternCount;
+		int weightCount;
+
+		Flattened(int taxonCount, int stride, int unknown) {
+			this.stride = stride;
+			patterns = new int[taxonCount * stride];
+			weights = new int[stride];
+			Arrays.fill(patterns, unknown);
+		}
+
+		public int getReplicate() {
+			return replicate;
+		}
+
+		public int getPatternCount() {
+			return patternCount;
+		}
+	}
+
+	// view of the current alignment, and of the alignment at the last store(). Changing
+	// alignment rebuilds the spare view, restoring only swaps the stored one back in.
+	// Views are flattened on first use, so likelihoods reading the replicate directly do not pay for it.
+	Flattened [] views;
+	int currentView;
+	int storedView;
+
+	public AlignmentList() {
+	}
+
+	/** AlignmentList over alignments in store **/
+	public AlignmentList(ReplicateStore store) {
+		this.store = store;
+	}
+
 	@Override
 	public void initAndValidate() {
 		indicator = indicatorInput.get();
-		alignments = alignmentsInput.get();
+		if (store == null && replicatesInput.get() != null) {
+			try {
+				store = ReplicateCache.readPartition(replicatesInput.get(), partitionInput.get(), userDataTypeInput.get());
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not read " + replicatesInput.get().getPath() + ": " + e.getMessage());
+			}
+		} else if (store == null) {
+			List<Alignment> alignments = alignmentsInput.get();
+			store = new ReplicateStore(alignments.get(0));
+			for (Alignment a : alignments) {
+				store.add(a);
+			}
+		}
 		prevAlignment = -1;
-		currentAlignment = alignments.get(indicator.getValue());
-		
-		maxStateCount = currentAlignment.getMaxStateCount();
-		taxaNames = getTaxaNames();
-		
-		for (Alignment a : alignments) {
-			patternCount = Math.max(a.getPatternCount(), patternCount);
-		}
-		
+
+		maxStateCount = store.maxStateCount;
+		taxaNames = store.getTaxaNames();
+		patternCount = store.getMaxPatternCount();
+		stateCounts = Collections.unmodifiableList(store.stateCounts);
+
 		nullPattern = new int[taxaNames.size()];
 		Arrays.fill(nullPattern, getMaxStateCount());
+		pattern = new int[taxaNames.size()];
+
+		views = new Flattened[]{new Flattened(taxaNames.size(), patternCount, getMaxStateCount()), new Flattened(taxaNames.size(), patternCount, getMaxStateCount())};
+		currentView = 0;
+		storedView = 0;
+		setCurrent(indicator.getValue());
+	}
+
+	/** make alignment the current one, unless one of the views already holds it **/
+	private void setCurrent(int alignment) {
+		if (views[currentView].replicate == alignment) {
+			return;
+		}
+		// never overwrite the view needed for restore
+		int target = views[storedView].replicate == alignment ? storedView : 1 - storedView;
+		Flattened view = views[target];
+		if (view.replicate != alignment) {
+			// only get the replicate from the store when rebuilding, since stores may decode or simulate it
+			view.source = store.get(alignment);
+			view.replicate = alignment;
+			view.flattened = false;
+			view.weighted = false;
+		}
+		currentView = target;
+		currentAlignment = view.source;
+	}
+
+	/** current view, with patterns and weights flattened **/
+	private Flattened view() {
+		Flattened view = weightsView();
+		if (!view.flattened) {
+			flattenPatterns(view);
+		}
+		return view;
 	}
-	
-	
-	
+
+	/** current view, with only the weights flattened, which is all that swapping alignments needs **/
+	private Flattened weightsView() {
+		Flattened view = views[currentView];
+		if (!view.weighted) {
+			flattenWeights(view);
+		}
+		return view;
+	}
+
+	private void flattenPatterns(Flattened target) {
+		ReplicateStore.Replicate replicate = target.source;
+		int n = replicate.getPatternCount();
+		for (int j = 0; j < taxaNames.size(); j++) {
+			replicate.getStates(j, target.patterns, j * target.stride);
+			if (target.patternCount > n) {
+				Arrays.fill(target.patterns, j * target.stride + n, j * target.stride + target.patternCount, getMaxStateCount());
+			}
+		}
+		target.patternCount = n;
+		target.flattened = true;
+	}
+
+	private void flattenWeights(Flattened target) {
+		ReplicateStore.Replicate replicate = target.source;
+		int n = replicate.getPatternCount();
+		System.arraycopy(replicate.weights, 0, target.weights, 0, n);
+		if (target.weightCount > n) {
+			Arrays.fill(target.weights, n, target.weightCount, 0);
+		}
+		target.weightCount = n;
+		target.weighted = true;
+	}
+
+	public ReplicateStore getReplicateStore() {
+		return store;
+	}
+
+	public int getReplicateCount() {
+		return store.getReplicateCount();
+	}
+
+	/** index of the current alignment in the store **/
+	public int getCurrentIndex() {
+		return indicator.getValue();
+	}
+
+	public ReplicateStore.Replicate getCurrentReplicate() {
+		return currentAlignment;
+	}
+
+	/** flattened view of the current alignment. NB: arrays are reused for later alignments, so should not be held on to **/
+	public Flattened getFlattened() {
+		return view();
+	}
+
 	@Override
 	protected boolean requiresRecalculation() {
 		if (indicator.somethingIsDirty()) {
-			currentAlignment = alignments.get(indicator.getValue());
+			setCurrent(indicator.getValue());
 			return true;
 		}
 		return false;
 	}
-	
+
 	@Override
 	protected void store() {
 		prevAlignment = indicator.getValue();
+		storedView = currentView;
 		super.store();
 	}
-	
+
 	@Override
 	protected void restore() {
 		if (prevAlignment == indicator.getValue()) {
-			super.restore();			
+			super.restore();
 		}
 		prevAlignment = indicator.getValue();
+		setCurrent(indicator.getValue());
 	}
 
-
-
-
-
 	@Override
     public List<Integer> getStateCounts() {
-        return currentAlignment.getStateCounts();
+        return stateCounts;
     }
 
 	@Override
     public List<List<Integer>> getCounts() {
-        return currentAlignment.getCounts();
+		// reconstruct sequences, with sites ordered by pattern
+		List<List<Integer>> counts = new ArrayList<>();
+		for (int j = 0; j < taxaNames.size(); j++) {
+			List<Integer> seq = new ArrayList<>(getSiteCount());
+			for (int i = 0; i < currentAlignment.patternCount; i++) {
+				int code = currentAlignment.get(j, i);
+				for (int k = 0; k < currentAlignment.weights[i]; k++) {
+					seq.add(code);
+				}
+			}
+			counts.add(seq);
+		}
+        return counts;
     }
 
 	@Override
     public DataType getDataType() {
-        return currentAlignment.getDataType();
+        return store.getDataType();
     }
 
 	@Override
     public int getTaxonCount() {
-		return currentAlignment.getTaxonCount();
+		return store.getTaxonCount();
     }
 
 	@Override
     public int getNrTaxa() {
-        return currentAlignment.getTaxonCount();
+        return store.getTaxonCount();
     }
 
 	@Override
     public int getTaxonIndex(String id) {
-        return currentAlignment.getTaxonIndex(id);
+        return store.getTaxonIndex(id);
     }
 
 	@Override
     public int getPatternCount() {
 		return patternCount;
-        //return currentAlignment.getPatternCount();
     }
 
+	/** NB: the returned array is reused by subsequent calls **/
 	@Override
     public int[] getPattern(int patternIndex_) {
-		if (patternIndex_ >= currentAlignment.getPatternCount()) {
+		Flattened view = view();
+		if (patternIndex_ >= view.patternCount) {
 			return nullPattern;
 		}
-        return currentAlignment.getPattern(patternIndex_);
+		for (int j = 0; j < pattern.length; j++) {
+			pattern[j] = view.patterns[j * view.stride + patternIndex_];
+		}
+        return pattern;
     }
 
 	@Override
     public int getPattern(int taxonIndex, int patternIndex_) {
-		if (patternIndex_ >= currentAlignment.getPatternCount()) {
-			return nullPattern[0];
-		}
-        return currentAlignment.getPattern(taxonIndex, patternIndex_);
+		// padding holds unknown states
+		Flattened view = view();
+        return view.patterns[taxonIndex * view.stride + patternIndex_];
     }
 
 	@Override
     public int getPatternWeight(int patternIndex_) {
-        return currentAlignment.getPatternWeight(patternIndex_);
+		// padding has zero weight
+		return patternIndex_ < currentAlignment.patternCount ? currentAlignment.weights[patternIndex_] : 0;
     }
 
 	@Override
     public int getMaxStateCount() {
-        return currentAlignment.getMaxStateCount();
+        return store.maxStateCount;
     }
 
 	@Override
@@ -140,12 +308,13 @@ public class AlignmentList extends Alignment {
 
 	@Override
     public int getSiteCount() {
-        return currentAlignment.getSiteCount();
+        return store.getSiteCount();
     }
 
 	@Override
     public int[] getWeights() {
-        return currentAlignment.getWeights();
+		// NB: padded to the pattern count, and reused for later alignments
+        return weightsView().weights;
     }
 
 
@@ -156,17 +325,25 @@ public class AlignmentList extends Alignment {
 
 	@Override
 	public String toString(boolean singleLine) {
-		return currentAlignment.toString(singleLine);
+		StringBuilder buf = new StringBuilder();
+		for (String taxon : taxaNames) {
+			buf.append("<sequence taxon='" + taxon + "' value='" + getSequenceAsString(taxon) + "'/>");
+			if (!singleLine) {
+				buf.append('\n');
+			}
+		}
+		return buf.toString();
     }
 
 	@Override
     public double[] getTipLikelihoods(int taxonIndex, int patternIndex_) {
-		return currentAlignment.getTipLikelihoods(taxonIndex, patternIndex_);
+		// simulated data has no tip likelihoods
+		return null;
     }
 
 	@Override
     public boolean[] getStateSet(int state) {
-		return currentAlignment.getStateSet(state);
+		return store.getDataType().getStateSet(state);
     }
 
 //	@Override
@@ -176,28 +353,38 @@ public class AlignmentList extends Alignment {
 
 	@Override
     public Set<Integer> getExcludedPatternIndices() {
-        return currentAlignment.getExcludedPatternIndices();
+        return Collections.emptySet();
     }
 
 	@Override
     public int getExcludedPatternCount() {
-        return currentAlignment.getExcludedPatternCount();
+        return 0;
     }
 
 	@Override
 	public double getAscertainmentCorrection(double[] patternLogProbs) {
-		return currentAlignment.getAscertainmentCorrection(patternLogProbs);
+		// simulated data is not ascertained
+		return 0.0;
     } // getAscertainmentCorrection
 
 
 	@Override
 	public String getSequenceAsString(String taxon) {
-		return currentAlignment.getSequenceAsString(taxon);
+		int j = store.getTaxonIndex(taxon);
+		int [] seq = new int[getSiteCount()];
+		int k = 0;
+		for (int i = 0; i < currentAlignment.patternCount; i++) {
+			int code = currentAlignment.get(j, i);
+			for (int w = 0; w < currentAlignment.weights[i]; w++) {
+				seq[k++] = code;
+			}
+		}
+		return store.getDataType().state2string(seq);
 	}
-	
+
 	@Override
 	public List<String> getTaxaNames() {
-		return currentAlignment.getTaxaNames();
+		return store.getTaxaNames();
 	}
-	
+
 }
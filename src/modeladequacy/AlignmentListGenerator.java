@@ -2,17 +2,27 @@ package modeladequacy;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.xml.sax.SAXException;
 
-import beast.app.seqgen.SequenceSimulator;
-import beast.app.treeannotator.TreeAnnotator;
-import beast.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
 import beast.core.BEASTInterface;
 import beast.core.BEASTObject;
 import beast.core.Description;
@@ -23,22 +33,38 @@ import beast.core.Logger.LOGMODE;
 import beast.core.MCMC;
 import beast.core.StateNode;
 import beast.core.parameter.Parameter;
-import beast.evolution.alignment.Alignment;
+import beast.core.util.Log;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.branchratemodel.StrictClockModel;
 import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
-import beast.util.LogAnalyser;
+import beast.util.Randomizer;
 import beast.util.XMLParser;
 import beast.util.XMLParserException;
 
-@Description("Simulates a number of alignments from an XML analysis")
+@Description("Simulates a number of alignments from an XML analysis, for every partition in the analysis")
 public class AlignmentListGenerator extends BEASTObject {
+	public enum Sampling {first, thinned, random}
+
 	final public Input<File> XMLFileInput = new Input<>("xml", "XML file containing the BEAST model to simulate from. This file can be generated in BEAUti.", Validate.REQUIRED);
 	final public Input<File> logDirInput = new Input<>("logDir", "directory containing log files with a posterior sample of the XML analysis (uses current working dir if not specified)");
 	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of log file to disregard as burn-in", 10);
 	final public Input<Integer> alignmentCountInput = new Input<>("alignments", "number of alignments to generate (must be less than number of entries in log file once burn-in is removed)", 100);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for simulating alignments. Each thread uses its own copy of the model", 1);
+	final public Input<Sampling> samplingInput = new Input<>("sampling", "how to select log entries to simulate from: the first ones after burn-in, "
+			+ "evenly spaced entries over the whole post burn-in sample, or a random selection (using the seed)", Sampling.first, Sampling.values());
+	final public Input<Long> seedInput = new Input<>("seed", "seed for simulating alignments. The same seed gives the same alignments, independent of the number of threads (uses the BEAST seed if not specified)");
+	final public Input<Integer> windowInput = new Input<>("window", "if positive, alignments are simulated on demand while the MCMC runs instead of all up front, "
+			+ "and only this many alignments following the current one are kept in memory (default 0, simulate all up front)", 0);
+	final public Input<Integer> sequentialBatchInput = new Input<>("sequentialBatch", "if positive, alignments are simulated in batches of this size, and simulation "
+			+ "stops as soon as the posterior predictive p-values of all test statistics are confidently above or below alpha (default 0, simulate all alignments)", 0);
+	final public Input<Double> alphaInput = new Input<>("alpha", "significance level for deciding a test statistic indicates model inadequacy in sequential mode", 0.05);
+	final public Input<Double> toleranceInput = new Input<>("tolerance", "probability of making the wrong decision for any test statistic in sequential mode", 0.01);
+	final public Input<File> cacheDirInput = new Input<>("cacheDir", "directory for caching simulated alignments. Later runs with the same XML, log files, burn-in, "
+			+ "number of alignments, sampling and seed reuse the cached alignments instead of simulating them. "
+			+ "Note that a seed must be specified for this to have effect (default no caching)");
 	
 	
 	public AlignmentListGenerator() {
@@ -53,9 +79,36 @@ public class AlignmentListGenerator extends BEASTObject {
 	File logDir;
 	int burnInPercentage;
 	int alignemntCount;
+	int threads;
+	long seed;
+	Sampling sampling;
 	String traceLogFile;
-	String treeFile;
+	// tree log file name by tree ID
+	Map<String, String> treeFiles;
 	MCMC mcmc;
+	// post burn-in log entries the alignments were simulated from
+	int [] samples;
+	// set when alignments are simulated on demand
+	LazyReplicates lazy;
+	// test statistics of observed data and alignments, when simulating sequentially
+	List<ReplicateStatistics.Summary> summaries;
+	private ReplicateStatistics statistics;
+	// replicate cache file, if caching
+	File cacheFile;
+	// if set, replicate file to take alignments from if it exists, and to save them to otherwise, instead of a cache file
+	File replicateFile;
+	// records phase timings if set
+	RunMetrics metrics;
+	// log readers and worker for restoring the state of a model to a log entry
+	private TraceLogReader sampleTraceLog;
+	private Map<String, TreeLogReader> sampleTreeLogs;
+	private Worker sampleWorker;
+	// trace log columns by parameter ID, resolved once and shared by the workers
+	private Map<String, int[]> columnsByID = new HashMap<>();
+	// thread pool, parsed models and log readers shared with other generators in a batch, if set.
+	// Models taken from it are returned on close(), log readers are left open
+	BatchResources resources;
+	private List<MCMC> borrowedModels = new ArrayList<>();
 	
 	@Override
 	public void initAndValidate() {
@@ -63,20 +116,17 @@ public class AlignmentListGenerator extends BEASTObject {
 		logDir = logDirInput.get();
 		burnInPercentage = burnInPercentageInput.get();
 		alignemntCount = alignmentCountInput.get();
+		threads = Math.max(1, threadsInput.get());
+		seed = seedInput.get() != null ? seedInput.get() : Randomizer.getSeed();
+		sampling = samplingInput.get();
 		
+		mcmc = parseXML();
 		
-		XMLParser parser = new XMLParser();
-		try {
-			mcmc = (MCMC) parser.parseFile(xml);
-		} catch (SAXException | IOException | ParserConfigurationException | XMLParserException e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException(e);
-		}
-		
-		// determine traceLogFile and treeFile
+		// determine traceLogFile and treeFiles
+		treeFiles = new LinkedHashMap<>();
 		for (Logger logger : mcmc.loggersInput.get()) {
 			if (logger.mode == LOGMODE.tree) {
-				treeFile = logger.fileNameInput.get();
+				String treeFile = logger.fileNameInput.get();
 	            if (treeFile.contains("$(tree)")) {
 	            	String treeName = "tree";
 	            	for (BEASTInterface logable : logger.loggersInput.get()) {
@@ -88,6 +138,10 @@ public class AlignmentListGenerator extends BEASTObject {
 	            		}
 	            	}
 	            	treeFile = treeFile.replace("$(tree)", treeName);
+	            }
+	            Tree tree = getTree(logger);
+	            if (tree != null) {
+	            	treeFiles.put(tree.getID(), treeFile);
 	            }
 			} else if (logger.mode == LOGMODE.compound && logger.fileNameInput.get() != null) {
 				traceLogFile = logger.fileNameInput.get();
@@ -96,93 +150,433 @@ public class AlignmentListGenerator extends BEASTObject {
 	}
 
 	
+	MCMC parseXML() {
+		if (resources != null) {
+			MCMC model = resources.acquireModel(xml, this::parseNewXML);
+			borrowedModels.add(model);
+			return model;
+		}
+		return parseNewXML();
+	}
+
+	private MCMC parseNewXML() {
+		XMLParser parser = new XMLParser();
+		try {
+			return (MCMC) parser.parseFile(xml);
+		} catch (SAXException | IOException | ParserConfigurationException | XMLParserException e) {
+			e.printStackTrace();
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	
+	/** alignments simulated for the first partition **/
 	public AlignmentList generateAlignmentList() throws IOException {
-		LogAnalyser traceLog = new LogAnalyser(logDir.getAbsolutePath() + "/" + traceLogFile, burnInPercentage);
-		MemoryFriendlyTreeSet treeSet = new TreeAnnotator().new MemoryFriendlyTreeSet(logDir.getAbsolutePath() + "/" + treeFile, burnInPercentage);
-		treeSet.reset();
-		
-		GenericTreeLikelihood treeLikelihood = getTreeLikelihood(mcmc);
-		Set<StateNode> stateNodes = new LinkedHashSet<>();
-		getStateAncestors(treeLikelihood, stateNodes);
-		AlignmentList list = new AlignmentList();
-		SequenceSimulator simulator = getSimulator(treeLikelihood);
-		List<Alignment> alignments = list.alignmentsInput.get();
-
-		// generate alignments, make sure the first alignment has the largest patterncount
-		// so likelihoodCores will reserve appropriate amount of memory
-		int maxPatternCount = 0;
-		for (int i = 0; i < alignemntCount; i++) {
-			initialiseState(stateNodes, i, traceLog, treeSet);
-			Alignment alignment = simulator.simulate();
-			alignment.initAndValidate();
-			if (alignment.getPatternCount() > maxPatternCount && alignments.size() > 0) {
-				alignments.add(0, alignment);
+		return generateAlignmentLists().get(0);
+	}
+
+	/** alignments simulated for every tree likelihood in the model, all simulated from the same log entries **/
+	public List<AlignmentList> generateAlignmentLists() throws IOException {
+		// replicates share taxa and data type with the original data of their partition
+		List<GenericTreeLikelihood> likelihoods = getTreeLikelihoods(mcmc);
+		ReplicateStore [] stores = new ReplicateStore[likelihoods.size()];
+		for (int i = 0; i < stores.length; i++) {
+			stores[i] = new ReplicateStore(likelihoods.get(i).dataInput.get());
+		}
+
+		boolean sequential = sequentialBatchInput.get() > 0 && windowInput.get() <= 0;
+		File cacheFile = null;
+		if (replicateFile != null || cacheDirInput.get() != null) {
+			if (metrics != null) {
+				metrics.begin("cache");
+			}
+			if (replicateFile != null) {
+				cacheFile = replicateFile;
 			} else {
-				alignments.add(alignment);
+				List<File> logs = new ArrayList<>();
+				logs.add(new File(logDir.getAbsolutePath() + "/" + traceLogFile));
+				for (String treeFile : treeFiles.values()) {
+					logs.add(new File(logDir.getAbsolutePath() + "/" + treeFile));
+				}
+				cacheDirInput.get().mkdirs();
+				cacheFile = new File(cacheDirInput.get(), ReplicateCache.key(xml, logs, burnInPercentage, alignemntCount, sampling, seed,
+						sequential ? sequentialBatchInput.get() : 0, alphaInput.get(), toleranceInput.get()));
+			}
+			this.cacheFile = cacheFile;
+			if (cacheFile.exists()) {
+				ReplicateCache.Content content = ReplicateCache.read(cacheFile, stores);
+				if (content != null && !sequential && content.samples.length < alignemntCount) {
+					// only a sequential run may have stopped early
+					Log.warning("Replicate file " + cacheFile.getPath() + " has " + content.samples.length + " alignments, but " + alignemntCount + " are required: simulating again");
+					content = null;
+				}
+				if (content != null) {
+					Log.warning("Using " + content.samples.length + " alignments from replicate cache " + cacheFile.getPath());
+					samples = content.samples;
+					seed = content.seed;
+					return toLists(content.stores);
+				}
+			}
+		}
+
+		if (metrics != null) {
+			metrics.begin("logs");
+		}
+		TraceLogReader traceLog = openTraceLog();
+		Map<String, TreeLogReader> treeLogs = new LinkedHashMap<>();
+		ExecutorService executor = null;
+		try {
+			openTreeLogs(treeLogs);
+			int [] samples = selectSamples(traceLog, treeLogs.values());
+			if (sequential) {
+				// simulate in random order, so a run that stops early has a random part of the selection,
+				// not only consecutive (and correlated) log entries
+				shuffle(samples, new Random(seed + 1));
+			}
+			this.samples = samples;
+			if (metrics != null) {
+				metrics.begin("simulate");
+			}
+
+			if (windowInput.get() > 0) {
+				// simulate on demand, on a copy of the model so the primary model is free for the MCMC
+				lazy = new LazyReplicates(new Worker(parseXML(), traceLog, treeLogs), traceLog, treeLogs, samples, stores, windowInput.get());
+				ReplicateStore [] lazyStores = new ReplicateStore[stores.length];
+				for (int i = 0; i < stores.length; i++) {
+					// number of patterns is not known in advance, but cannot exceed the number of sites
+					lazyStores[i] = new ReplicateStore(stores[i], lazy.partition(i), stores[i].getSiteCount());
+				}
+				return toLists(lazyStores);
+			}
+
+			// every worker gets its own copy of the model, the first one uses the model that is returned to the caller
+			BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(threads);
+			workers.add(new Worker(mcmc, traceLog, treeLogs));
+			for (int i = 1; i < threads; i++) {
+				workers.add(new Worker(parseXML(), traceLog, treeLogs));
+			}
+
+			SequentialTest test = null;
+			if (sequential) {
+				statistics = new ReplicateStatistics(ReplicateStatistics.defaultStatistics(), threads);
+				summaries = new ArrayList<>();
+				for (int i = 0; i < stores.length; i++) {
+					summaries.addAll(statistics.summarise(likelihoods.get(i).getID(), stores[i].toReplicate(likelihoods.get(i).dataInput.get()), stores[i]));
+				}
+				test = new SequentialTest(summaries, alphaInput.get(), toleranceInput.get());
+			}
+			int batchSize = sequential ? sequentialBatchInput.get() : alignemntCount;
+
+			executor = resources != null ? resources.executor : Executors.newFixedThreadPool(threads);
+			for (int start = 0; start < alignemntCount; start += batchSize) {
+				int end = Math.min(start + batchSize, alignemntCount);
+				List<Future<ReplicateStore.Replicate[]>> futures = new ArrayList<>();
+				for (int i = start; i < end; i++) {
+					final int replicate = i;
+					futures.add(executor.submit(() -> {
+						Worker worker = workers.take();
+						try {
+							return worker.simulate(replicate, samples[replicate], traceLog, treeLogs, stores);
+						} finally {
+							workers.put(worker);
+						}
+					}));
+				}
+
+				// collect alignments in sample order
+				for (Future<ReplicateStore.Replicate[]> future : futures) {
+					ReplicateStore.Replicate [] replicates = future.get();
+					for (int i = 0; i < stores.length; i++) {
+						stores[i].add(replicates[i]);
+					}
+				}
+
+				if (test != null) {
+					int k = 0;
+					for (ReplicateStore store : stores) {
+						int statisticCount = statistics.statistics.size();
+						ReplicateStatistics.add(summaries.subList(k, k + statisticCount), statistics.calculate(store, start, end));
+						k += statisticCount;
+					}
+					boolean settled = test.check();
+					Log.warning(test.report());
+					if (settled) {
+						Log.warning("All p-values settled after " + end + " alignments, stopping simulation");
+						break;
+					}
+				}
+			}
+			if (metrics != null) {
+				metrics.count("replicates", stores[0].getReplicateCount());
+			}
+			if (cacheFile != null) {
+				ReplicateCache.write(cacheFile, seed, Arrays.copyOf(samples, stores[0].getReplicateCount()), stores);
+				Log.warning("Saved alignments to replicate cache " + cacheFile.getPath());
+			}
+			return toLists(stores);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			if (executor != null && resources == null) {
+				executor.shutdownNow();
+			}
+			if (statistics != null) {
+				statistics.shutdown();
+				statistics = null;
+			}
+			if (lazy == null) {
+				closeLogs(traceLog, treeLogs);
+			}
+		}
+	}
+
+	/** set state of model to the log entry that alignment replicate was simulated from, with trees not scaled by rates **/
+	public void restoreSample(MCMC model, int replicate) throws IOException {
+		if (sampleWorker == null || sampleWorker.mcmc != model) {
+			if (sampleTraceLog == null) {
+				sampleTraceLog = openTraceLog();
+				sampleTreeLogs = new LinkedHashMap<>();
+				openTreeLogs(sampleTreeLogs);
+			}
+			sampleWorker = new Worker(model, sampleTraceLog, sampleTreeLogs);
+		}
+		sampleWorker.restore(samples[replicate], sampleTraceLog, sampleTreeLogs);
+	}
+
+	/** close logs opened by this generator; logs from batch resources are shared with other jobs, and closed by the resources **/
+	private void closeLogs(TraceLogReader traceLog, Map<String, TreeLogReader> treeLogs) throws IOException {
+		if (resources == null) {
+			traceLog.close();
+			for (TreeLogReader treeLog : treeLogs.values()) {
+				treeLog.close();
 			}
-			maxPatternCount = alignments.get(0).getPatternCount();
 		}
-		
-		return list;
 	}
 
-	private void initialiseState(Set<StateNode> stateNodes, int i, LogAnalyser traceLog,
-			MemoryFriendlyTreeSet treeSet) throws IOException {
-		if (!treeSet.hasNext()) {
-			throw new IllegalArgumentException("Too many trees requested fromo the tree file");
+	/** release log files and background thread used for simulating alignments on demand or restoring samples **/
+	public void close() throws IOException {
+		if (lazy != null) {
+			lazy.close();
+			closeLogs(lazy.traceLog, lazy.treeLogs);
+			lazy = null;
 		}
-		if (i >= traceLog.getTrace(0).length) {
-			throw new IllegalArgumentException("Too many log entries requested fromo the trace log file");
+		if (sampleTraceLog != null) {
+			closeLogs(sampleTraceLog, sampleTreeLogs);
+			sampleTraceLog = null;
+			sampleWorker = null;
 		}
+		if (resources != null) {
+			for (MCMC model : borrowedModels) {
+				resources.releaseModel(xml, model);
+			}
+			borrowedModels.clear();
+		}
+	}
 
-		Tree tree = scaleByRate(treeSet);
-		
+	private TraceLogReader openTraceLog() throws IOException {
+		File file = new File(logDir.getAbsolutePath() + "/" + traceLogFile);
+		return resources != null ? resources.traceLog(file, burnInPercentage) : new TraceLogReader(file, burnInPercentage);
+	}
+
+	private void openTreeLogs(Map<String, TreeLogReader> treeLogs) throws IOException {
+		for (String treeID : treeFiles.keySet()) {
+			File file = new File(logDir.getAbsolutePath() + "/" + treeFiles.get(treeID));
+			treeLogs.put(treeID, resources != null ? resources.treeLog(file, burnInPercentage) : new TreeLogReader(file, burnInPercentage));
+		}
+	}
+
+	private List<AlignmentList> toLists(ReplicateStore [] stores) {
+		List<AlignmentList> lists = new ArrayList<>();
+		for (ReplicateStore store : stores) {
+			lists.add(new AlignmentList(store));
+		}
+		return lists;
+	}
+
+	private static void shuffle(int [] values, Random random) {
+		for (int i = values.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = values[i]; values[i] = values[j]; values[j] = tmp;
+		}
+	}
+
+	/** indices of post burn-in log entries to simulate from, in increasing order **/
+	int [] selectSamples(TraceLogReader traceLog, Collection<TreeLogReader> treeLogs) {
+		int available = traceLog.getSampleCount();
+		for (TreeLogReader treeLog : treeLogs) {
+			if (traceLog.getSampleCount() != treeLog.getSampleCount()) {
+				Log.warning("Trace log has " + traceLog.getSampleCount() + " entries after burn-in, but tree log " + treeLog.file.getName() + " has " + treeLog.getSampleCount() + " trees");
+			}
+			available = Math.min(available, treeLog.getSampleCount());
+		}
+		if (alignemntCount > available) {
+			throw new IllegalArgumentException("Too many alignments requested: there are only " + available + " log entries after burn-in");
+		}
+		int [] samples = new int[alignemntCount];
+		switch (sampling) {
+		case first:
+			for (int i = 0; i < samples.length; i++) {
+				samples[i] = i;
+			}
+			break;
+		case thinned:
+			for (int i = 0; i < samples.length; i++) {
+				samples[i] = (int) ((long) i * available / alignemntCount);
+			}
+			break;
+		case random:
+			// partial Fisher-Yates shuffle
+			Random random = new Random(seed);
+			int [] index = new int[available];
+			for (int i = 0; i < available; i++) {
+				index[i] = i;
+			}
+			for (int i = 0; i < samples.length; i++) {
+				int j = i + random.nextInt(available - i);
+				int tmp = index[i]; index[i] = index[j]; index[j] = tmp;
+				samples[i] = index[i];
+			}
+			Arrays.sort(samples);
+			break;
+		}
+		return samples;
+	}
+
+	/** model graph used by a single simulation thread **/
+	class Worker {
+		final MCMC mcmc;
+		final Set<StateNode> stateNodes;
+		// one simulator per partition
+		final ReplicateSimulator [] simulators;
+		// parameters bound to their trace log columns
+		final List<ParameterBinding> bindings;
+		final double [] values;
+		// scanners assigning logged trees directly to the trees in the state, by tree ID
+		final Map<String, TreeScanner> scanners;
 		
-		// set up individual state node values stored in log files
-		List<String> labels = traceLog.getLabels();
-		for (StateNode stateNode : stateNodes) {
-			if (stateNode instanceof Tree) {
-				if (tree == null) {
-					throw new IllegalArgumentException("Not implemented yet: there is more than 1 tree in the state");
-				}
-				Tree t = (Tree) stateNode;
-				t.assignFrom(tree);
-				tree = null; // make sure there is only one tree
-			} if (stateNode instanceof Parameter) {
-				Parameter param = (Parameter) stateNode;
-				String label = stateNode.getID();
-				if (stateNode.getDimension() == 1) {
-					int index = traceLog.indexof(label);
-					if (index < 0) {
-						index = traceLog.indexof(label.substring(0, label.indexOf('.')));
+		Worker(MCMC mcmc, TraceLogReader traceLog, Map<String, TreeLogReader> treeLogs) {
+			this.mcmc = mcmc;
+			List<GenericTreeLikelihood> likelihoods = getTreeLikelihoods(mcmc);
+			stateNodes = new LinkedHashSet<>();
+			simulators = new ReplicateSimulator[likelihoods.size()];
+			for (int i = 0; i < simulators.length; i++) {
+				getStateAncestors(mcmc, likelihoods.get(i), stateNodes);
+				simulators[i] = getSimulator(likelihoods.get(i));
+			}
+			// the alignment indicator added by MA is not in the logs
+			stateNodes.removeIf(stateNode -> ChainSetup.INDICATOR_ID.equals(stateNode.getID()));
+			bindings = new ArrayList<>();
+			for (StateNode stateNode : stateNodes) {
+				if (stateNode instanceof Parameter) {
+					int [] index = columnsByID.get(stateNode.getID());
+					if (index == null) {
+						index = getColumns(stateNode, traceLog);
+						columnsByID.put(stateNode.getID(), index);
 					}
-					if (index < 0) {
-						throw new IllegalArgumentException("Could not find entry for " + stateNode.getID() + " in tracelog");
+					for (int i : index) {
+						traceLog.require(i);
 					}
-					Double [] trace = traceLog.getTrace(index);
-					param.setValue(trace[i]);					
+					bindings.add(ParameterBinding.bind((Parameter<?>) stateNode, index));
+				} else if (stateNode instanceof Tree && !treeLogs.containsKey(stateNode.getID())) {
+					throw new IllegalArgumentException("Could not find tree log for tree " + stateNode.getID());
+				}
+			}
+			scanners = new HashMap<>();
+			for (StateNode stateNode : stateNodes) {
+				if (stateNode instanceof Tree) {
+					scanners.put(stateNode.getID(), new TreeScanner((Tree) stateNode, treeLogs.get(stateNode.getID()).getTaxa()));
+				}
+			}
+			values = new double[traceLog.getLabels().size()];
+		}
+		
+		/** simulate alignments for all partitions from a single log entry **/
+		ReplicateStore.Replicate[] simulate(int replicate, int sample, TraceLogReader traceLog, Map<String, TreeLogReader> treeLogs, ReplicateStore [] stores) throws IOException {
+			traceLog.read(sample, values);
+			initialiseState(readTrees(sample, treeLogs, true), values);
+			// partitions draw from the same stream in fixed order, so a single partition gives the same alignments as before
+			Random random = new Random(ReplicateSimulator.replicateSeed(seed, replicate));
+			ReplicateStore.Replicate [] replicates = new ReplicateStore.Replicate[simulators.length];
+			for (int i = 0; i < simulators.length; i++) {
+				replicates[i] = simulators[i].simulate(random, stores[i]);
+			}
+			return replicates;
+		}
+
+		/** set state to log entry sample, with trees as logged **/
+		void restore(int sample, TraceLogReader traceLog, Map<String, TreeLogReader> treeLogs) throws IOException {
+			traceLog.read(sample, values);
+			initialiseState(readTrees(sample, treeLogs, false), values);
+		}
+
+		/** assign logged trees to the state trees through their scanners. Trees the scanner
+		 * cannot handle are parsed instead, and returned to be assigned by initialiseState **/
+		private Map<String, Tree> readTrees(int sample, Map<String, TreeLogReader> treeLogs, boolean scaleByRate) throws IOException {
+			Map<String, Tree> trees = new HashMap<>();
+			for (String treeID : treeLogs.keySet()) {
+				TreeScanner scanner = scanners.get(treeID);
+				if (scanner != null && scanner.scan(treeLogs.get(treeID).readNewick(sample), scaleByRate)) {
+					scanner.assign();
 				} else {
-					for (int j = 1; j <= param.getDimension(); j++) {
-						int index = traceLog.indexof(label + j);
-						if (index < 0) {
-							index = traceLog.indexof(label.substring(0, label.indexOf('.')+1) + j);
-						}
-						if (index < 0) {
-							throw new IllegalArgumentException("Could not find entry for " + stateNode.getID() + j + " in tracelog");
-						}
-						Double [] trace = traceLog.getTrace(index);
-						param.setValue(j-1, trace[i]);					
+					Tree tree = treeLogs.get(treeID).read(sample);
+					trees.put(treeID, scaleByRate ? scaleByRate(tree) : tree);
+				}
+			}
+			return trees;
+		}
+
+		private void initialiseState(Map<String, Tree> trees, double [] values) {
+			// set up individual state node values stored in log files
+			for (StateNode stateNode : stateNodes) {
+				if (stateNode instanceof Tree) {
+					Tree t = (Tree) stateNode;
+					if (trees.containsKey(t.getID())) {
+						t.assignFrom(trees.get(t.getID()));
 					}
 				}
 			}
+			for (ParameterBinding binding : bindings) {
+				binding.assign(values);
+			}
+	
+			// make sure internal states are up to date
+			mcmc.robustlyCalcPosterior(mcmc.posteriorInput.get());
 		}
+	}
 
-		// make sure internal states are up to date
-		mcmc.robustlyCalcPosterior(mcmc.posteriorInput.get());
+	/** trace log columns containing the values of stateNode **/
+	private int [] getColumns(StateNode stateNode, TraceLogReader traceLog) {
+		String label = stateNode.getID();
+		if (stateNode.getDimension() == 1) {
+			int index = traceLog.indexof(label);
+			if (index < 0) {
+				index = traceLog.indexof(label.substring(0, label.indexOf('.')));
+			}
+			if (index < 0) {
+				throw new IllegalArgumentException("Could not find entry for " + stateNode.getID() + " in tracelog");
+			}
+			return new int[]{index};
+		}
+		int [] index = new int[stateNode.getDimension()];
+		for (int j = 1; j <= index.length; j++) {
+			index[j-1] = traceLog.indexof(label + j);
+			if (index[j-1] < 0) {
+				index[j-1] = traceLog.indexof(label.substring(0, label.indexOf('.')+1) + j);
+			}
+			if (index[j-1] < 0) {
+				throw new IllegalArgumentException("Could not find entry for " + stateNode.getID() + j + " in tracelog");
+			}
+		}
+		return index;
 	}
 
-	private Tree scaleByRate(MemoryFriendlyTreeSet treeSet) throws IOException {
-		Tree tree = treeSet.next();
+	private Tree scaleByRate(Tree tree) {
 		double [] lengths = new double[tree.getNodeCount()];
 		for (Node node : tree.getNodesAsArray()) {
 			Object rate = node.getMetaData("rate");
@@ -210,7 +604,7 @@ public class AlignmentListGenerator extends BEASTObject {
 		}
 	}
 
-	private void getStateAncestors(BEASTInterface o, Set<StateNode> stateNodes) {
+	private void getStateAncestors(MCMC mcmc, BEASTInterface o, Set<StateNode> stateNodes) {
 		if (o instanceof StateNode) {
 			StateNode stateNode = (StateNode) o;
 			if (mcmc.startStateInput.get().stateNodeInput.get().contains(stateNode)) {
@@ -218,35 +612,56 @@ public class AlignmentListGenerator extends BEASTObject {
 			}
 		}
 		for (BEASTInterface bo : o.listActiveBEASTObjects()) {
-			getStateAncestors(bo, stateNodes);
+			getStateAncestors(mcmc, bo, stateNodes);
 		}
 	}
 
-	private SequenceSimulator getSimulator(GenericTreeLikelihood treeLikelihood) {
-		SequenceSimulator simulator = new SequenceSimulator();
-		BranchRateModel clockModel = new StrictClockModel();
+	private ReplicateSimulator getSimulator(GenericTreeLikelihood treeLikelihood) {
+		StrictClockModel strictClockModel = new StrictClockModel();
+		strictClockModel.initAndValidate();
+		BranchRateModel clockModel = strictClockModel;
 		if (treeLikelihood.branchRateModelInput.get() instanceof StrictClockModel) {
 			// this ensures for strict clocks the clock rate is taken from the log file,
 			// while for other clock models rates are logged in the tree (@see scaleByRate())
 			clockModel = treeLikelihood.branchRateModelInput.get();
 		}
 		
-		simulator.initByName("tree", treeLikelihood.treeInput.get(),
-				"siteModel", treeLikelihood.siteModelInput.get(),
-				"data", treeLikelihood.dataInput.get(),
-				"branchRateModel", clockModel,
-				"sequencelength", treeLikelihood.dataInput.get().getSiteCount());		
-		return simulator;
+		return new ReplicateSimulator((Tree) treeLikelihood.treeInput.get(),
+				(SiteModel.Base) treeLikelihood.siteModelInput.get(),
+				clockModel,
+				treeLikelihood.dataInput.get());
 	}
 
-	static GenericTreeLikelihood getTreeLikelihood(BEASTInterface o) {
+	/** all tree likelihoods in the model, in the order they are encountered **/
+	static List<GenericTreeLikelihood> getTreeLikelihoods(BEASTInterface o) {
+		Set<GenericTreeLikelihood> likelihoods = new LinkedHashSet<>();
+		getTreeLikelihoods(o, likelihoods);
+		if (likelihoods.isEmpty()) {
+			throw new IllegalArgumentException("Could not find a tree likelihood in the model");
+		}
+		return new ArrayList<>(likelihoods);
+	}
+
+	private static void getTreeLikelihoods(BEASTInterface o, Set<GenericTreeLikelihood> likelihoods) {
 		if (o instanceof GenericTreeLikelihood) {
-			return (GenericTreeLikelihood) o;
+			// do not descend, since a tree likelihood may wrap others (e.g. ThreadedTreeLikelihood)
+			likelihoods.add((GenericTreeLikelihood) o);
+			return;
+		}
+		for (BEASTInterface bo : o.listActiveBEASTObjects()) {
+			getTreeLikelihoods(bo, likelihoods);
+		}
+	}
+
+	/** tree logged by a tree logger **/
+	private static Tree getTree(BEASTInterface o) {
+		if (o instanceof Tree) {
+			return (Tree) o;
 		}
 		for (BEASTInterface bo : o.listActiveBEASTObjects()) {
-			GenericTreeLikelihood r = getTreeLikelihood(bo);
-			if (r != null) {
-				return r;
+			Tree tree = getTree(bo);
+			if (tree != null) {
+				return tree;
 			}
 		}
 		return null;
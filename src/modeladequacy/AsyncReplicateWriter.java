@@ -0,0 +1,229 @@
+package modeladequacy;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes text to many files (typically one per replicate) on a background
+ * thread. Callers format their output and queue it, so they only wait when the
+ * queue is full. At most maxOpenFiles files are kept open, the least recently
+ * written one is closed to make room, and reopened for appending when written
+ * to again. Gzipped files then consist of several gzip members, which
+ * GZIPInputStream and zcat read as one stream. When resuming, files that
+ * already exist are appended to without writing the header again, after
+ * removing the footer the earlier run ended them with.
+ */
+class AsyncReplicateWriter {
+	private static class Record {
+		final File file;
+		final String header;
+		final String text;
+
+		Record(File file, String header, String text) {
+			this.file = file;
+			this.header = header;
+			this.text = text;
+		}
+	}
+
+	// marks the end of the queue
+	private final static Record END = new Record(null, null, null);
+
+	private final BlockingQueue<Record> queue;
+	private final boolean gzip;
+	private final int maxOpenFiles;
+	private final boolean resume;
+	private final Map<File, PrintStream> open;
+	// files written to before, which are appended to instead of overwritten
+	private final Set<File> started = new HashSet<>();
+	private final Thread thread;
+	private volatile IOException error;
+	private final String footer;
+
+	AsyncReplicateWriter(int queueSize, boolean gzip, int maxOpenFiles, boolean resume, String footer) {
+		queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		this.gzip = gzip;
+		this.maxOpenFiles = Math.max(1, maxOpenFiles);
+		this.resume = resume;
+		this.footer = footer;
+		open = new LinkedHashMap<>(16, 0.75f, true);
+		thread = new Thread(this::run, "replicate-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** queue text to be written to file. Header is written first if the file was not written to before **/
+	void write(File file, String header, String text) throws IOException {
+		if (error != null) {
+			throw error;
+		}
+		try {
+			queue.put(new Record(file, header, text));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/** write footer to every file written to, close all files and wait for the writer thread to finish **/
+	void close() throws IOException {
+		try {
+			// a writer thread stopped by an error takes nothing more, and a record queued since may have filled the queue
+			while (!queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+				if (!thread.isAlive()) {
+					break;
+				}
+			}
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				Record record = queue.take();
+				if (record == END) {
+					break;
+				}
+				PrintStream out = stream(record);
+				out.print(record.text);
+				if (out.checkError()) {
+					throw new IOException("Could not write to " + record.file.getPath());
+				}
+			}
+			for (Iterator<PrintStream> i = open.values().iterator(); i.hasNext();) {
+				i.next().close();
+				i.remove();
+			}
+			if (footer != null && footer.length() > 0) {
+				for (File file : started) {
+					PrintStream out = newStream(file, true);
+					out.print(footer);
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			error = new IOException(e);
+		} finally {
+			for (PrintStream out : open.values()) {
+				out.close();
+			}
+			open.clear();
+			// unblock callers waiting on a full queue after an error
+			queue.clear();
+		}
+	}
+
+	private PrintStream stream(Record record) throws IOException {
+		PrintStream out = open.get(record.file);
+		if (out != null) {
+			return out;
+		}
+		if (open.size() >= maxOpenFiles) {
+			Iterator<PrintStream> eldest = open.values().iterator();
+			eldest.next().close();
+			eldest.remove();
+		}
+		boolean first = started.add(record.file);
+		boolean append = !first || (resume && record.file.length() > 0);
+		if (first && append) {
+			// new entries go before the footer
+			stripFooter(record.file);
+		}
+		out = newStream(record.file, append);
+		if (!append && record.header != null) {
+			out.print(record.header);
+		}
+		open.put(record.file, out);
+		return out;
+	}
+
+	/** remove footer from the end of file, if it is there **/
+	private void stripFooter(File file) throws IOException {
+		if (footer == null || footer.length() == 0) {
+			return;
+		}
+		byte [] tail = footer.getBytes("UTF-8");
+		if (!gzip) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				long length = raf.length();
+				if (length < tail.length) {
+					return;
+				}
+				byte [] end = new byte[tail.length];
+				raf.seek(length - tail.length);
+				raf.readFully(end);
+				if (Arrays.equals(end, tail)) {
+					raf.setLength(length - tail.length);
+				}
+			}
+			return;
+		}
+		// compressed files are rewritten without the footer, holding back the last bytes until the end is known
+		File tmp = new File(file.getPath() + ".tmp");
+		boolean found;
+		try (InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+			byte [] buf = new byte[(1 << 16) + tail.length];
+			int held = 0;
+			int n;
+			while ((n = in.read(buf, held, buf.length - held)) > 0) {
+				held += n;
+				if (held > tail.length) {
+					out.write(buf, 0, held - tail.length);
+					System.arraycopy(buf, held - tail.length, buf, 0, tail.length);
+					held = tail.length;
+				}
+			}
+			found = held == tail.length && Arrays.equals(Arrays.copyOf(buf, held), tail);
+			if (!found) {
+				out.write(buf, 0, held);
+			}
+		}
+		if (found) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} else {
+			Files.delete(tmp.toPath());
+		}
+	}
+
+	private PrintStream newStream(File file, boolean append) throws IOException {
+		OutputStream stream = new FileOutputStream(file, append);
+		if (gzip) {
+			stream = new GZIPOutputStream(stream, 1 << 16);
+		}
+		PrintStream out = new PrintStream(new BufferedOutputStream(stream, 1 << 16), false, "UTF-8");
+		if (out.checkError()) {
+			throw new IOException("Could not write to " + file.getPath());
+		}
+		return out;
+	}
+}
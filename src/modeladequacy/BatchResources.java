@@ -0,0 +1,130 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import beast.core.MCMC;
+
+/**
+ * Resources shared by the generators of a batch of model adequacy jobs: a
+ * thread pool for simulation, parsed models by XML content hash, and indexed
+ * log files by log content hash. Models are handed out to one generator at a time, and returned
+ * when the generator is closed. Log readers are never closed while the batch
+ * runs, since reading them is thread safe.
+ */
+class BatchResources {
+	final ExecutorService executor;
+	// idle parsed models by hash of XML content
+	final Map<String, Deque<MCMC>> models = new HashMap<>();
+	// log readers by content hash and burn-in
+	final Map<String, Object> logs = new HashMap<>();
+	// content hash of log files by path, size and modification time, so a log is only read for hashing once
+	final Map<String, String> logHashes = new HashMap<>();
+
+	BatchResources(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	/** an idle model parsed from xml, or a freshly parsed one if none is available **/
+	MCMC acquireModel(File xml, Supplier<MCMC> parser) {
+		String key = hash(xml);
+		synchronized (models) {
+			Deque<MCMC> idle = models.get(key);
+			if (idle != null && !idle.isEmpty()) {
+				return idle.pop();
+			}
+		}
+		return parser.get();
+	}
+
+	void releaseModel(File xml, MCMC mcmc) {
+		String key = hash(xml);
+		synchronized (models) {
+			models.computeIfAbsent(key, k -> new ArrayDeque<>()).push(mcmc);
+		}
+	}
+
+	TraceLogReader traceLog(File file, int burnInPercentage) throws IOException {
+		String key = logKey(file, burnInPercentage);
+		synchronized (logs) {
+			TraceLogReader reader = (TraceLogReader) logs.get(key);
+			if (reader == null) {
+				reader = new TraceLogReader(file, burnInPercentage);
+				logs.put(key, reader);
+			}
+			return reader;
+		}
+	}
+
+	TreeLogReader treeLog(File file, int burnInPercentage) throws IOException {
+		String key = logKey(file, burnInPercentage);
+		synchronized (logs) {
+			TreeLogReader reader = (TreeLogReader) logs.get(key);
+			if (reader == null) {
+				reader = new TreeLogReader(file, burnInPercentage);
+				logs.put(key, reader);
+			}
+			return reader;
+		}
+	}
+
+	/** key of a log reader: hash of the log's content, so copies of a log share a reader, and a rewritten log gets a new one **/
+	private String logKey(File file, int burnInPercentage) {
+		String fileKey = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+		String hash;
+		synchronized (logHashes) {
+			hash = logHashes.get(fileKey);
+		}
+		if (hash == null) {
+			hash = hash(file);
+			synchronized (logHashes) {
+				logHashes.put(fileKey, hash);
+			}
+		}
+		return hash + ":" + burnInPercentage;
+	}
+
+	private static String hash(File file) {
+		try (InputStream in = new FileInputStream(file)) {
+			// streamed, since logs may not fit in memory
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte [] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+			StringBuilder buf = new StringBuilder();
+			for (byte b : digest.digest()) {
+				buf.append(String.format("%02x", b));
+			}
+			return buf.toString();
+		} catch (IOException | NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Could not read " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+
+	void close() throws IOException {
+		executor.shutdownNow();
+		for (Object reader : logs.values()) {
+			if (reader instanceof TraceLogReader) {
+				((TraceLogReader) reader).close();
+			} else {
+				((TreeLogReader) reader).close();
+			}
+		}
+		logs.clear();
+		logHashes.clear();
+		models.clear();
+	}
+}
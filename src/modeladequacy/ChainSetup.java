@@ -0,0 +1,216 @@
+package modeladequacy;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+import beast.core.BEASTInterface;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.evolution.likelihood.MATreeLikelihood;
+
+/**
+ * Simulation and chain set-up shared by MA and ReplicateScheduler: creates the
+ * generator of the simulated alignments, and rewires a parsed analysis so that
+ * its tree likelihoods run over those alignments. Owners fill in the settings
+ * from their own inputs before use.
+ */
+class ChainSetup {
+	final static String INDICATOR_ID = "alignmentIndicator";
+	final static String TRACELOG_ID = "tracelog";
+
+	// settings of the generator
+	File xml;
+	File logDir;
+	int burnInPercentage = 10;
+	int alignmentCount = 100;
+	int threads = 1;
+	AlignmentListGenerator.Sampling sampling = AlignmentListGenerator.Sampling.first;
+	Long seed;
+	File cacheDir;
+	int window;
+	int sequentialBatch;
+	double alpha = 0.05;
+	double tolerance = 0.01;
+
+	// settings of the rewired chains
+	int likelihoodCacheSize;
+	int logAlignments;
+	File replicateLogDir;
+	boolean gzip;
+	// records counters of the tree likelihoods, and is added to the trace log if logMetrics is set. Null if not recording
+	RunMetrics metrics;
+	boolean logMetrics;
+
+	AlignmentListGenerator createGenerator() {
+		AlignmentListGenerator alg = new AlignmentListGenerator();
+		alg.XMLFileInput.setValue(xml, alg);
+		alg.logDirInput.setValue(logDir, alg);
+		alg.burnInPercentageInput.setValue(burnInPercentage, alg);
+		alg.alignmentCountInput.setValue(alignmentCount, alg);
+		alg.threadsInput.setValue(threads, alg);
+		alg.windowInput.setValue(window, alg);
+		alg.sequentialBatchInput.setValue(sequentialBatch, alg);
+		alg.alphaInput.setValue(alpha, alg);
+		alg.toleranceInput.setValue(tolerance, alg);
+		alg.samplingInput.setValue(sampling, alg);
+		if (seed != null) {
+			alg.seedInput.setValue(seed, alg);
+		}
+		if (cacheDir != null) {
+			alg.cacheDirInput.setValue(cacheDir, alg);
+		}
+		alg.initAndValidate();
+		alg.metrics = metrics;
+		return alg;
+	}
+
+	/** rewire model so that every tree likelihood runs over the alignments of its partition in lists,
+	 * with a single indicator selecting the current alignment of all partitions **/
+	void setUpChain(MCMC mcmc, List<AlignmentList> lists) throws Exception {
+		setUpChain(mcmc, lists, 0);
+	}
+
+	/** as setUpChain(mcmc, lists), where lists start at alignment offset of the full list **/
+	void setUpChain(MCMC mcmc, List<AlignmentList> lists, int offset) throws Exception {
+		List<GenericTreeLikelihood> treeLikelihoods = AlignmentListGenerator.getTreeLikelihoods(mcmc);
+		if (treeLikelihoods.size() != lists.size()) {
+			throw new IllegalArgumentException("Expected alignments for " + treeLikelihoods.size() + " partitions, but got " + lists.size());
+		}
+
+		// add alignment indicator, shared by all partitions
+		IntegerParameter indicator = new IntegerParameter();
+		indicator.setID(INDICATOR_ID);
+		indicator.initByName("value", 0, "upper", lists.get(0).getReplicateCount() - 1, "lower", 0);
+
+		// add indicator to state
+		State state = mcmc.startStateInput.get();
+		state.stateNodeInput.get().add(indicator);
+
+		// add indicator operator
+		//UniformOperator operator = new UniformOperator();
+		//operator.initByName("weight", 3.0, "parameter", indicator);
+		IndicatorOperator operator = new IndicatorOperator();
+		operator.initByName("weight", 0.01, "parameter", indicator);
+		mcmc.operatorsInput.get().add(operator);
+
+		// add indicator to tracelog
+		for (Logger logger : mcmc.loggersInput.get()) {
+			if (TRACELOG_ID.equals(logger.getID())) {
+				logger.loggersInput.get().add(indicator);
+				if (metrics != null && logMetrics) {
+					logger.loggersInput.get().add(metrics);
+				}
+				logger.initAndValidate();
+			}
+		}
+		if (replicateLogDir != null) {
+			addReplicateLoggers(mcmc, indicator, offset);
+		}
+
+		for (int i = 0; i < lists.size(); i++) {
+			setUpPartition(treeLikelihoods.get(i), lists.get(i), indicator);
+		}
+	}
+
+	/** add a ReplicateLogger for every logger writing to file, logging the same items to one file per alignment **/
+	private void addReplicateLoggers(MCMC mcmc, IntegerParameter indicator, int offset) {
+		replicateLogDir.mkdirs();
+		List<Logger> loggers = mcmc.loggersInput.get();
+		for (Logger logger : loggers.toArray(new Logger[]{})) {
+			if (logger.fileNameInput.get() == null || logger instanceof ReplicateLogger) {
+				continue;
+			}
+			String fileName = new File(logger.fileNameInput.get()).getName();
+			ReplicateLogger replicateLogger = new ReplicateLogger();
+			replicateLogger.fileNameInput.setValue(new File(replicateLogDir, "replicate" + ReplicateLogger.REPLICATE_PATTERN + "." + fileName).getPath(), replicateLogger);
+			replicateLogger.everyInput.setValue(logger.everyInput.get(), replicateLogger);
+			for (Object loggable : logger.loggersInput.get()) {
+				replicateLogger.loggersInput.setValue(loggable, replicateLogger);
+			}
+			replicateLogger.indicatorInput.setValue(indicator, replicateLogger);
+			replicateLogger.offsetInput.setValue(offset, replicateLogger);
+			replicateLogger.gzipInput.setValue(gzip, replicateLogger);
+			replicateLogger.initAndValidate();
+			if (logger.getID() != null) {
+				replicateLogger.setID(logger.getID() + ".replicates");
+			}
+			loggers.add(replicateLogger);
+		}
+	}
+
+	/** replace data of treeLikelihood by list, and treeLikelihood by an MATreeLikelihood **/
+	private void setUpPartition(GenericTreeLikelihood treeLikelihood, AlignmentList list, IntegerParameter indicator) throws Exception {
+		Alignment data = treeLikelihood.dataInput.get();
+		TaxonSet taxonset = getTaxonSet(data);
+		Set<BEASTInterface> set = data.getOutputs();
+		for (BEASTInterface bo : set.toArray(new BEASTInterface[]{})) {
+			if (bo instanceof TaxonSet) {
+				// to prevent a TaxonSet sitting in between the indicator parameter of AlignmentList (which is a StateNode)
+				// and TreeLikelihood (a CalculationNode) while TaxonSet is not a CalculationNode, we pass taxa to the
+				// TaxonSet and set Alignment-input to null
+				TaxonSet t = (TaxonSet) bo;
+				t.taxonsetInput.get().addAll(taxonset.taxonsetInput.get());
+				t.alignmentInput.set(null);
+			} else {
+				for (Input<?> input : bo.listInputs()) {
+					if (input.get() != null && input.get().equals(data)) {
+						input.setValue(list, bo);
+					}
+				}
+			}
+		}
+		treeLikelihood.dataInput.setValue(list, treeLikelihood);
+
+		list.indicatorInput.setValue(indicator, list);
+		list.initAndValidate();
+
+		// replace treelikelihood by MATreeLikelihood
+		MATreeLikelihood newLikelihood = new MATreeLikelihood();
+		newLikelihood.initByName("tree", treeLikelihood.treeInput.get(),
+				"siteModel", treeLikelihood.siteModelInput.get(),
+				"data", treeLikelihood.dataInput.get(),
+				"branchRateModel", treeLikelihood.branchRateModelInput.get(),
+				"cacheSize", likelihoodCacheSize,
+				"logAlignments", logAlignments);
+		newLikelihood.setID(treeLikelihood.getID());
+		if (metrics != null) {
+			metrics.likelihoods.add(newLikelihood);
+		}
+
+		set = treeLikelihood.getOutputs();
+		for (BEASTInterface bo : set.toArray(new BEASTInterface[]{})) {
+			for (Input<?> input : bo.listInputs()) {
+				if (input.get() != null) {
+					if (input.get().equals(treeLikelihood)) {
+						input.setValue(newLikelihood, bo);
+					} else if (input.get() instanceof List<?>) {
+						List l = (List) input.get();
+						for (int i = 0; i < l.size(); i++) {
+							Object o = l.get(i);
+							if (o.equals(treeLikelihood)) {
+								l.set(i, newLikelihood);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private TaxonSet getTaxonSet(Alignment data) {
+		TaxonSet taxonSet = new TaxonSet();
+		for (String taxon : data.getTaxaNames()) {
+			taxonSet.taxonsetInput.get().add(new Taxon(taxon));
+		}
+		taxonSet.setID("newTaxonSet");
+		return taxonSet;
+	}
+}
@@ -0,0 +1,111 @@
+package modeladequacy;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replicates of all partitions that are simulated when they are first needed,
+ * instead of all before the MCMC starts. Only a window of replicates is kept:
+ * the one before the last requested (so a rejected indicator move can be
+ * restored) up to window replicates after it. A background thread simulates
+ * the replicates following the last requested one, since IndicatorOperator
+ * steps through the indicator values in order.
+ */
+class LazyReplicates {
+	final AlignmentListGenerator.Worker worker;
+	final TraceLogReader traceLog;
+	final Map<String, TreeLogReader> treeLogs;
+	final int [] samples;
+	final ReplicateStore [] headers;
+	final int window;
+
+	// replicates of all partitions by replicate index, in order of submission
+	final LinkedHashMap<Integer, Future<ReplicateStore.Replicate[]>> ready;
+	final ExecutorService executor;
+
+	LazyReplicates(AlignmentListGenerator.Worker worker, TraceLogReader traceLog, Map<String, TreeLogReader> treeLogs,
+			int [] samples, ReplicateStore [] headers, int window) {
+		this.worker = worker;
+		this.traceLog = traceLog;
+		this.treeLogs = treeLogs;
+		this.samples = samples;
+		this.headers = headers;
+		this.window = Math.max(1, window);
+		ready = new LinkedHashMap<>();
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "replicate-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/** replicates of partitions for replicate index i **/
+	synchronized ReplicateStore.Replicate[] get(int i) {
+		Future<ReplicateStore.Replicate[]> future = submit(i);
+		prefetch(i);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private Future<ReplicateStore.Replicate[]> submit(int i) {
+		Future<ReplicateStore.Replicate[]> future = ready.get(i);
+		if (future == null) {
+			future = executor.submit(() -> worker.simulate(i, samples[i], traceLog, treeLogs, headers));
+			ready.put(i, future);
+		}
+		return future;
+	}
+
+	/** drop replicates outside the window around i, and queue those following i **/
+	private void prefetch(int i) {
+		int count = samples.length;
+		Iterator<Integer> iterator = ready.keySet().iterator();
+		while (iterator.hasNext()) {
+			int j = iterator.next();
+			int distance = (j - i + count) % count;
+			if (distance > window && distance != count - 1) {
+				ready.get(j).cancel(false);
+				iterator.remove();
+			}
+		}
+		for (int k = 1; k <= window && k < count; k++) {
+			submit((i + k) % count);
+		}
+	}
+
+	/** view on the replicates of a single partition **/
+	List<ReplicateStore.Replicate> partition(int p) {
+		return new AbstractList<ReplicateStore.Replicate>() {
+			@Override
+			public ReplicateStore.Replicate get(int i) {
+				return LazyReplicates.this.get(i)[p];
+			}
+
+			@Override
+			public int size() {
+				return samples.length;
+			}
+		};
+	}
+
+	/** stop the background thread. The logs belong to the caller, which may share them with other jobs, so are left open **/
+	void close() {
+		executor.shutdownNow();
+	}
+}
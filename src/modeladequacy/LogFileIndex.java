@@ -0,0 +1,119 @@
+package modeladequacy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One pass scanner recording byte offsets of lines in a log file, and
+ * positional line reads so that entries can be read in any order and
+ * from several threads without parsing the rest of the file.
+ */
+class LogFileIndex {
+	/** number of bytes at the start of a line passed to the visitor **/
+	final static int PREFIX_LENGTH = 32;
+
+	interface LineVisitor {
+		/** called for every line in the file with its offset and (at most PREFIX_LENGTH) first characters **/
+		void visit(long offset, String prefix);
+	}
+
+	static void scan(File file, LineVisitor visitor) throws IOException {
+		InputStream in = new FileInputStream(file);
+		byte [] buffer = new byte[1 << 16];
+		byte [] prefix = new byte[PREFIX_LENGTH];
+		int prefixLength = 0;
+		long offset = 0;
+		long lineStart = 0;
+		boolean lineEmpty = true;
+		int read;
+		try {
+			while ((read = in.read(buffer)) > 0) {
+				for (int i = 0; i < read; i++) {
+					byte c = buffer[i];
+					if (c == '\n') {
+						visitor.visit(lineStart, new String(prefix, 0, prefixLength, StandardCharsets.UTF_8));
+						prefixLength = 0;
+						lineStart = offset + i + 1;
+						lineEmpty = true;
+					} else {
+						if (prefixLength < PREFIX_LENGTH && c != '\r') {
+							prefix[prefixLength++] = c;
+						}
+						lineEmpty = false;
+					}
+				}
+				offset += read;
+			}
+			if (!lineEmpty) {
+				visitor.visit(lineStart, new String(prefix, 0, prefixLength, StandardCharsets.UTF_8));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/** read line starting at offset. Uses positional reads only, so it is safe to call from several threads on the same channel **/
+	static String readLine(FileChannel channel, long offset) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long position = offset;
+		while (true) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			byte [] bytes = buffer.array();
+			for (int i = 0; i < read; i++) {
+				if (bytes[i] == '\n') {
+					line.write(bytes, 0, i);
+					return trimCR(line);
+				}
+			}
+			line.write(bytes, 0, read);
+			position += read;
+		}
+		return trimCR(line);
+	}
+
+	private static String trimCR(ByteArrayOutputStream line) {
+		String str = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		if (str.endsWith("\r")) {
+			str = str.substring(0, str.length() - 1);
+		}
+		return str;
+	}
+
+	/** growable list of offsets **/
+	static class Offsets {
+		long [] offsets = new long[1024];
+		int size;
+
+		void add(long offset) {
+			if (size == offsets.length) {
+				long [] tmp = new long[size * 2];
+				System.arraycopy(offsets, 0, tmp, 0, size);
+				offsets = tmp;
+			}
+			offsets[size++] = offset;
+		}
+
+		/** offsets from start onwards **/
+		long [] toArray(int start) {
+			long [] result = new long[size - start];
+			System.arraycopy(offsets, start, result, 0, result.length);
+			return result;
+		}
+	}
+}
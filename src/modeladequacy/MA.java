@@ -1,25 +1,28 @@
 package modeladequacy;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import beast.app.util.Application;
-import beast.core.BEASTInterface;
 import beast.core.Input;
 import beast.core.Runnable;
-import beast.core.State;
 import beast.core.Input.Validate;
 import beast.core.Logger;
-import beast.core.parameter.IntegerParameter;
 import beast.core.util.Log;
-import beast.evolution.alignment.Alignment;
-import beast.evolution.alignment.Taxon;
-import beast.evolution.alignment.TaxonSet;
 import beast.evolution.likelihood.GenericTreeLikelihood;
-import beast.evolution.likelihood.MATreeLikelihood;
-import beast.evolution.operators.UniformOperator;
 import beast.util.XMLProducer;
 import beast.core.MCMC;
 
@@ -28,114 +31,469 @@ public class MA extends Runnable {
 	final public Input<File> logDirInput = new Input<>("logDir", "directory containing log files with a posterior sample of the XML analysis (uses current working dir if not specified)");
 	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of log file to disregard as burn-in", 10);
 	final public Input<Integer> alignmentCountInput = new Input<>("alignments", "number of alignments to generate (must be less than number of entries in log file once burn-in is removed)", 100);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for simulating alignments", 1);
+	final public Input<AlignmentListGenerator.Sampling> samplingInput = new Input<>("sampling", "how to select log entries to simulate from: the first ones after burn-in, "
+			+ "evenly spaced entries over the whole post burn-in sample, or a random selection (using the seed)", AlignmentListGenerator.Sampling.first, AlignmentListGenerator.Sampling.values());
+	final public Input<Long> seedInput = new Input<>("seed", "seed for simulating alignments (uses the BEAST seed if not specified)");
+	final public Input<File> cacheDirInput = new Input<>("cacheDir", "directory for caching simulated alignments, so later runs with the same XML, logs "
+			+ "and settings (including seed) do not need to simulate them again (default no caching)");
+	final public Input<Integer> windowInput = new Input<>("window", "if positive, alignments are simulated on demand while the MCMC runs, keeping only this many "
+			+ "alignments ahead of the current one in memory. Only a single chain is used in this mode (default 0, simulate all alignments before running)", 0);
+	final public Input<File> statisticsFileInput = new Input<>("statistics", "if specified, posterior predictive test statistics of the observed data and "
+			+ "the simulated alignments are calculated and written as a table with p-values to this file");
+	final public Input<Integer> sequentialBatchInput = new Input<>("sequentialBatch", "if positive, alignments are simulated in batches of this size until the "
+			+ "posterior predictive p-values of all test statistics are settled (default 0, simulate all alignments)", 0);
+	final public Input<Double> alphaInput = new Input<>("alpha", "significance level of test statistics in sequential mode", 0.05);
+	final public Input<Double> toleranceInput = new Input<>("tolerance", "probability of a wrong adequacy decision in sequential mode", 0.01);
+	final public Input<Boolean> runMCMCInput = new Input<>("runMCMC", "whether to run the MCMC over the simulated alignments. "
+			+ "Set to false to only calculate test statistics", true);
+	final public Input<File> metricsFileInput = new Input<>("metrics", "if specified, wall time and allocated memory of every phase of the run, and counters such as "
+			+ "alignments simulated and alignment switches, are written to this file (as CSV if the name ends in .csv, JSON otherwise)");
+	final public Input<Boolean> logMetricsInput = new Input<>("logMetrics", "whether to log counts of alignment switches and restore-triggered resets in the trace log", false);
+	final public Input<File> exportXMLInput = new Input<>("exportXML", "if specified, the analysis running over the simulated alignments is saved as XML to this file. "
+			+ "Alignments are not included, but stored in a binary replicate file the XML refers to (default no export)");
+	final public Input<Integer> likelihoodCacheSizeInput = new Input<>("likelihoodCacheSize", "maximum memory (in MB) used by the tree likelihood for caching likelihoods of "
+			+ "revisited alignments (default 0, no caching)", 0);
+	final public Input<Integer> logAlignmentsInput = new Input<>("logAlignments", "number of alignments (starting at the first) whose likelihoods under the "
+			+ "current tree and parameters the tree likelihoods log as extra columns, calculated in a single pass at every log entry. Negative for all alignments. "
+			+ "Only supported with a single chain (default 0, none)", 0);
+	final public Input<File> replicateLogDirInput = new Input<>("replicateLogDir", "if specified, every trace and tree log of the analysis is also written "
+			+ "as one file per alignment to this directory, holding only the samples taken while running over that alignment. "
+			+ "Test statistics of every alignment are written there as well, if calculated (default no per alignment logs)");
+	final public Input<Boolean> gzipInput = new Input<>("gzip", "whether to gzip the per alignment logs", false);
+	final public Input<File> checkpointDirInput = new Input<>("checkpointDir", "if specified, simulated alignments, test statistics and the state of every chain "
+			+ "are saved in this directory, so that an interrupted run can be resumed (default no checkpoints)");
+	final public Input<Integer> checkpointEveryInput = new Input<>("checkpointEvery", "number of samples between saving the state of the chains to the checkpoint directory", 100000);
+	final public Input<Boolean> resumeInput = new Input<>("resume", "whether to resume from the checkpoint directory, using the saved alignments instead of simulating, "
+			+ "and continuing the chains from their saved states and logs. If false, earlier checkpoints are discarded", false);
+	final public Input<Integer> chainsInput = new Input<>("chains", "number of independent MCMC chains, each running over its own share of the alignments. "
+			+ "Every chain writes its own log files, which are merged into the original trace log at the end.", 1);
+
+	final static String REPLICATE_CHECKPOINT = "replicates.bin";
+	final static String STATISTICS_CHECKPOINT = "statistics.tsv";
 
 	@Override
 	public void initAndValidate() {
 	}
 
+	// records phase timings and counters, if requested
+	RunMetrics metrics;
+	ChainSetup setup;
+
 	@Override
 	public void run() throws Exception {
+		if (metricsFileInput.get() != null || logMetricsInput.get()) {
+			metrics = new RunMetrics();
+		}
+		setup = newChainSetup();
+		try {
+			runAnalysis();
+		} finally {
+			if (metrics != null) {
+				metrics.end();
+				if (metricsFileInput.get() != null) {
+					metrics.write(metricsFileInput.get());
+					Log.warning("Metrics written to " + metricsFileInput.get().getPath());
+				}
+			}
+		}
+	}
+
+	private void runAnalysis() throws Exception {
         Log.warning("Setting up the analysis");
-		AlignmentListGenerator alg = new AlignmentListGenerator(XMLFileInput.get(), logDirInput.get(), burnInPercentageInput.get(), alignmentCountInput.get());
-		AlignmentList list = alg.generateAlignmentList();
-		MCMC mcmc = alg.mcmc;
-		GenericTreeLikelihood treeLikelihood = AlignmentListGenerator.getTreeLikelihood(mcmc);
-
-		Alignment data = treeLikelihood.dataInput.get();
-		TaxonSet taxonset = getTaxonSet(data); 
-		Set<BEASTInterface> set = data.getOutputs();
-		for (BEASTInterface bo : set.toArray(new BEASTInterface[]{})) {
-			if (bo instanceof TaxonSet) {
-				// to prevent a TaxonSet sitting in between the indicator parameter of AlignmentList (which is a StateNode)
-				// and TreeLikelihood (a CalculationNode) while TaxonSet is not a CalculationNode, we pass taxa to the
-				// TaxonSet and set Alignment-input to null
-				TaxonSet t = (TaxonSet) bo;
-				t.taxonsetInput.get().addAll(taxonset.taxonsetInput.get());
-				t.alignmentInput.set(null);
+        phase("parse");
+		AlignmentListGenerator alg = createGenerator();
+		try {
+			runAnalysis(alg);
+		} finally {
+			// stops prefetching, closes sample logs and returns borrowed models
+			alg.close();
+		}
+	}
+
+	private void runAnalysis(AlignmentListGenerator alg) throws Exception {
+		List<AlignmentList> lists = alg.generateAlignmentLists();
+		int replicateCount = lists.get(0).getReplicateCount();
+		if (statisticsFileInput.get() != null) {
+			phase("statistics");
+			File saved = checkpointFile(STATISTICS_CHECKPOINT);
+			if (saved != null && saved.exists() && resumeInput.get()) {
+				Log.warning("Using test statistics from checkpoint " + saved.getPath());
+				writeStatistics(ReplicateStatistics.load(saved));
+			} else if (alg.summaries != null) {
+				// already calculated while simulating sequentially
+				writeStatistics(alg.summaries);
 			} else {
-				for (Input<?> input : bo.listInputs()) {
-					if (input.get() != null && input.get().equals(data)) {
-						input.setValue(list, bo);
-					}
+				calculateStatistics(alg.mcmc, lists);
+			}
+		}
+		if (!runMCMCInput.get()) {
+			return;
+		}
+		int chains = Math.max(1, Math.min(chainsInput.get(), replicateCount));
+		if (chains > 1 && alg.lazy != null) {
+			Log.warning("Alignments are simulated on demand, so running a single chain instead of " + chains);
+			chains = 1;
+		}
+		if (chains > 1 && exportXMLInput.get() != null) {
+			throw new IllegalArgumentException("exportXML is not supported with more than one chain: set chains to 1 to export the analysis");
+		}
+		if (chains > 1 && logAlignmentsInput.get() != 0) {
+			// columns are numbered within a chain's share of the alignments, so they cannot be merged
+			throw new IllegalArgumentException("logAlignments is not supported with more than one chain: set chains to 1 or logAlignments to 0");
+		}
+
+		phase("rewire");
+		if (chains == 1) {
+			MCMC mcmc = alg.mcmc;
+			setup.setUpChain(mcmc, lists);
+			boolean resuming = setUpCheckpoint(mcmc, 0);
+
+			if (exportXMLInput.get() != null) {
+				phase("export");
+				exportXML(mcmc, lists, alg);
+			}
+
+	        Log.warning("Done set up. Start running the analysis");
+	        mcmc.initAndValidate();
+	        phase("mcmc");
+			Logger.LogFileMode fileMode = setFileMode(resuming);
+			try {
+				mcmc.run();
+			} finally {
+				Logger.FILE_MODE = fileMode;
+			}
+			return;
+		}
+
+		// checked before running, so a clash does not surface only after all chains are done
+		File merged = mergedTraceLog(alg);
+
+		// split alignments in consecutive groups, one group per chain
+		int [] offsets = new int[chains + 1];
+		List<MCMC> mcmcs = new ArrayList<>();
+		boolean resuming = false;
+		for (int i = 0; i < chains; i++) {
+			offsets[i] = i * replicateCount / chains;
+			offsets[i + 1] = (i + 1) * replicateCount / chains;
+			List<AlignmentList> chainLists = new ArrayList<>();
+			for (AlignmentList list : lists) {
+				chainLists.add(new AlignmentList(list.getReplicateStore().subStore(offsets[i], offsets[i + 1])));
+			}
+			MCMC mcmc = i == 0 ? alg.mcmc : alg.parseXML();
+			setup.setUpChain(mcmc, chainLists, offsets[i]);
+			renameLogs(mcmc, i);
+			if (checkpointDirInput.get() != null) {
+				resuming |= setUpCheckpoint(mcmc, i);
+			} else {
+				mcmc.setStateFile(XMLFileInput.get().getPath() + ".chain" + i + ".state", false);
+			}
+	        mcmc.initAndValidate();
+			mcmcs.add(mcmc);
+		}
+
+        Log.warning("Done set up. Start running " + chains + " chains");
+        phase("mcmc");
+		ExecutorService executor = Executors.newFixedThreadPool(chains);
+		Logger.LogFileMode fileMode = setFileMode(resuming);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (MCMC mcmc : mcmcs) {
+				futures.add(executor.submit(() -> {
+					mcmc.run();
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			executor.shutdown();
+			Logger.FILE_MODE = fileMode;
+		}
+
+		if (merged != null) {
+			phase("merge");
+			mergeTraceLogs(merged, mcmcs, offsets);
+		}
+	}
+
+	/** save the rewired analysis as XML, with alignment lists referring to a binary replicate file instead of holding sequences **/
+	private void exportXML(MCMC mcmc, List<AlignmentList> lists, AlignmentListGenerator alg) throws IOException {
+		if (alg.lazy != null) {
+			Log.warning("Alignments are simulated on demand, so they cannot be exported: no XML written");
+			return;
+		}
+		// always a file of its own: cache and checkpoint files may be replaced or deleted by later runs
+		File replicates = new File(exportXMLInput.get().getPath() + ".replicates.bin");
+		ReplicateStore [] stores = new ReplicateStore[lists.size()];
+		for (int i = 0; i < stores.length; i++) {
+			stores[i] = lists.get(i).getReplicateStore();
+		}
+		ReplicateCache.write(replicates, alg.seed, Arrays.copyOf(alg.samples, stores[0].getReplicateCount()), stores);
+		for (int i = 0; i < lists.size(); i++) {
+			lists.get(i).replicatesInput.setValue(replicates, lists.get(i));
+			lists.get(i).partitionInput.setValue(i, lists.get(i));
+		}
+		// XMLProducer only produces a String; it holds the model, not the sequences, which are in the replicate file
+		String xml = new XMLProducer().toXML(mcmc);
+		try (Writer out = new BufferedWriter(new FileWriter(exportXMLInput.get()))) {
+			out.write(xml);
+		}
+		Log.warning("Analysis written to " + exportXMLInput.get().getPath() + " with alignments in " + replicates.getPath());
+	}
+
+	/** file in the checkpoint directory, or null if not checkpointing **/
+	File checkpointFile(String name) {
+		if (checkpointDirInput.get() == null) {
+			return null;
+		}
+		return new File(checkpointDirInput.get(), name);
+	}
+
+	/**
+	 * let chain save its state to the checkpoint directory regularly, and continue from the saved state when resuming
+	 * @return whether the chain resumes from a saved state
+	 */
+	private boolean setUpCheckpoint(MCMC mcmc, int chain) {
+		File stateFile = checkpointFile("chain" + chain + ".state");
+		if (stateFile == null) {
+			return false;
+		}
+		boolean restore = resumeInput.get() && stateFile.exists();
+		mcmc.setStateFile(stateFile.getPath(), restore);
+		mcmc.storeEveryInput.setValue(checkpointEveryInput.get(), mcmc);
+		if (restore) {
+			Log.warning("Chain " + chain + " resumes from " + stateFile.getPath());
+		}
+		return restore;
+	}
+
+	/**
+	 * when resuming, let loggers append to existing logs as BEAST does with -resume. Loggers only read
+	 * the (JVM wide) file mode when the chains start, and the caller puts back the returned previous mode
+	 * once they are done, so other analyses in the same JVM are not affected.
+	 */
+	private Logger.LogFileMode setFileMode(boolean resuming) {
+		Logger.LogFileMode fileMode = Logger.FILE_MODE;
+		if (resuming) {
+			Logger.FILE_MODE = Logger.LogFileMode.resume;
+		}
+		return fileMode;
+	}
+
+	/** start timing a phase of the run, if metrics are recorded **/
+	void phase(String name) {
+		if (metrics != null) {
+			metrics.begin(name);
+		}
+	}
+
+	/** write posterior predictive test statistics of every partition to the statistics file **/
+	private void calculateStatistics(MCMC mcmc, List<AlignmentList> lists) throws IOException {
+		Log.warning("Calculating test statistics");
+		List<GenericTreeLikelihood> treeLikelihoods = AlignmentListGenerator.getTreeLikelihoods(mcmc);
+		ReplicateStatistics statistics = new ReplicateStatistics(ReplicateStatistics.defaultStatistics(), threadsInput.get());
+		List<ReplicateStatistics.Summary> summaries = new ArrayList<>();
+		try {
+			for (int i = 0; i < lists.size(); i++) {
+				ReplicateStore store = lists.get(i).getReplicateStore();
+				ReplicateStore.Replicate observed = store.toReplicate(treeLikelihoods.get(i).dataInput.get());
+				summaries.addAll(statistics.summarise(treeLikelihoods.get(i).getID(), observed, store));
+			}
+		} finally {
+			statistics.shutdown();
+		}
+		writeStatistics(summaries);
+	}
+
+	private void writeStatistics(List<ReplicateStatistics.Summary> summaries) throws IOException {
+		PrintStream out = new PrintStream(statisticsFileInput.get());
+		ReplicateStatistics.write(out, summaries);
+		out.close();
+		Log.warning("Test statistics written to " + statisticsFileInput.get().getPath());
+		if (checkpointDirInput.get() != null) {
+			ReplicateStatistics.save(checkpointFile(STATISTICS_CHECKPOINT), summaries);
+		}
+		if (replicateLogDirInput.get() != null) {
+			writeReplicateStatistics(summaries);
+		}
+	}
+
+	/** write test statistics of every alignment to a file of its own in the replicate log directory **/
+	private void writeReplicateStatistics(List<ReplicateStatistics.Summary> summaries) throws IOException {
+		File dir = replicateLogDirInput.get();
+		dir.mkdirs();
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(1024, gzipInput.get(), 1, false, null);
+		int replicateCount = summaries.isEmpty() ? 0 : summaries.get(0).values.size();
+		for (int i = 0; i < replicateCount; i++) {
+			StringBuilder buf = new StringBuilder();
+			for (ReplicateStatistics.Summary s : summaries) {
+				buf.append(s.partition + "\t" + s.statistic + "\t" + s.values.get(i) + "\n");
+			}
+			writer.write(new File(dir, "replicate" + i + ".statistics.tsv" + (gzipInput.get() ? ".gz" : "")), "partition\tstatistic\tvalue\n", buf.toString());
+		}
+		writer.close();
+	}
+
+	/** give every log file of the chain a chain specific name, and only let the first chain log to screen **/
+	private void renameLogs(MCMC mcmc, int chain) {
+		List<Logger> loggers = mcmc.loggersInput.get();
+		for (Logger logger : loggers.toArray(new Logger[]{})) {
+			String fileName = logger.fileNameInput.get();
+			if (logger instanceof ReplicateLogger) {
+				// file names differ between chains by alignment number already
+				continue;
+			} else if (fileName == null) {
+				if (chain > 0) {
+					loggers.remove(logger);
 				}
+			} else {
+				logger.fileNameInput.setValue(chainFileName(fileName, chain), logger);
+				logger.initAndValidate();
 			}
 		}
-		treeLikelihood.dataInput.setValue(list, treeLikelihood);
-		
-		
-		// add alignment indicator
-		IntegerParameter indicator = new IntegerParameter();
-		indicator.setID("alignmentIndicator");
-		indicator.initByName("value", 0, "upper", alignmentCountInput.get() - 1, "lower", 0);
-		
-		// add indicator to state
-		State state = mcmc.startStateInput.get();
-		state.stateNodeInput.get().add(indicator);
-		
-		// add indicator operator
-		//UniformOperator operator = new UniformOperator();
-		//operator.initByName("weight", 3.0, "parameter", indicator);		
-		IndicatorOperator operator = new IndicatorOperator();
-		operator.initByName("weight", 0.01, "parameter", indicator);
-		mcmc.operatorsInput.get().add(operator);
-		
-		// add indicator to tracelog
-		for (Logger logger : mcmc.loggersInput.get()) {
-			if (logger.getID().equals("tracelog")) {
-				logger.loggersInput.get().add(indicator);
-			}
-		}
-	
-		list.indicatorInput.setValue(indicator, list);
-		list.initAndValidate();
-		
-		
-		// replace treelikelihood by MATreeLikelihood
-		MATreeLikelihood newLikelihood = new MATreeLikelihood();
-		newLikelihood.initByName("tree", treeLikelihood.treeInput.get(),
-				"siteModel", treeLikelihood.siteModelInput.get(),
-				"data", treeLikelihood.dataInput.get(),
-				"branchRateModel", treeLikelihood.branchRateModelInput.get());		
-		newLikelihood.setID(treeLikelihood.getID());
-
-		set = treeLikelihood.getOutputs();
-		for (BEASTInterface bo : set.toArray(new BEASTInterface[]{})) {
-			for (Input<?> input : bo.listInputs()) {
-				if (input.get() != null) {
-					if (input.get().equals(treeLikelihood)) {
-						input.setValue(newLikelihood, bo);
-					} else if (input.get() instanceof List<?>) {
-						List l = (List) input.get();
-						for (int i = 0; i < l.size(); i++) {
-							Object o = l.get(i);
-							if (o.equals(treeLikelihood)) {
-								l.set(i, newLikelihood);
-							}
+	}
+
+	static String chainFileName(String fileName, int chain) {
+		return suffixedFileName(fileName, ".chain" + chain);
+	}
+
+	/** file name with suffix inserted before the extension **/
+	static String suffixedFileName(String fileName, String suffix) {
+		int i = fileName.lastIndexOf('.');
+		if (i <= fileName.lastIndexOf(File.separatorChar)) {
+			return fileName + suffix;
+		}
+		return fileName.substring(0, i) + suffix + fileName.substring(i);
+	}
+
+	/**
+	 * file the trace logs of the chains are merged into: the trace log of the analysis with .merged
+	 * added to its name, so the posterior sample the alignments were simulated from is never overwritten.
+	 * @return null if the analysis has no trace log
+	 */
+	private File mergedTraceLog(AlignmentListGenerator alg) throws IOException {
+		String fileName = null;
+		for (Logger logger : alg.mcmc.loggersInput.get()) {
+			if (ChainSetup.TRACELOG_ID.equals(logger.getID())) {
+				fileName = logger.fileNameInput.get();
+			}
+		}
+		if (fileName == null) {
+			Log.warning("No trace log found, so no merged trace log will be produced");
+			return null;
+		}
+		File merged = new File(suffixedFileName(fileName, ".merged"));
+		File input = new File(alg.logDir.getAbsolutePath(), alg.traceLogFile);
+		if (merged.getCanonicalFile().equals(input.getCanonicalFile())) {
+			throw new IllegalArgumentException("Merged trace log " + merged.getPath() + " would overwrite the trace log the alignments are simulated from");
+		}
+		if (merged.exists() && Logger.FILE_MODE != Logger.LogFileMode.overwrite && !resumeInput.get()) {
+			throw new IllegalArgumentException("Merged trace log " + merged.getPath() + " already exists: remove it, or use overwrite mode");
+		}
+		return merged;
+	}
+
+	/** merge trace logs of the chains into file, with indicators renumbered to the full alignment list **/
+	private void mergeTraceLogs(File merged, List<MCMC> mcmcs, int [] offsets) throws IOException {
+		// trace log of the first chain, with the chain suffix that renameLogs() added
+		String fileName = null;
+		long logEvery = 1;
+		for (Logger logger : mcmcs.get(0).loggersInput.get()) {
+			if (ChainSetup.TRACELOG_ID.equals(logger.getID())) {
+				fileName = logger.fileNameInput.get();
+				logEvery = logger.everyInput.get();
+			}
+		}
+		String baseFileName = fileName.replace(".chain0", "");
+
+		PrintStream out = new PrintStream(merged);
+		long sample = 0;
+		boolean headerDone = false;
+		for (int i = 0; i < mcmcs.size(); i++) {
+			int indicatorColumn = -1;
+			int rows = 0;
+			BufferedReader fin = new BufferedReader(new FileReader(chainFileName(baseFileName, i)));
+			String str;
+			while ((str = fin.readLine()) != null) {
+				if (str.startsWith("#") || str.trim().length() == 0) {
+					if (!headerDone) {
+						out.println(str);
+					}
+				} else if (indicatorColumn < 0 && !Character.isDigit(str.charAt(0))) {
+					String [] labels = str.split("\t");
+					for (int j = 0; j < labels.length; j++) {
+						if (labels[j].equals(ChainSetup.INDICATOR_ID)) {
+							indicatorColumn = j;
 						}
 					}
+					if (!headerDone) {
+						out.println(str);
+						headerDone = true;
+					}
+				} else {
+					String [] values = str.split("\t");
+					values[0] = sample + "";
+					if (indicatorColumn > 0) {
+						values[indicatorColumn] = (Integer.parseInt(values[indicatorColumn].trim()) + offsets[i]) + "";
+					}
+					out.println(String.join("\t", values));
+					sample += logEvery;
+					rows++;
 				}
 			}
+			fin.close();
+			Log.warning("Chain " + i + ": alignments " + offsets[i] + "-" + (offsets[i + 1] - 1) + ", " + rows + " log entries");
 		}
+		out.close();
+		Log.warning("Merged trace logs into " + merged.getPath());
+	}
 
-		// save current analysis to XML
-		XMLProducer producer = new XMLProducer();
-		String xml = producer.toXML(mcmc);
-        FileWriter outfile = new FileWriter("/tmp/beast.xml");
-        outfile.write(xml);
-        outfile.close();
-		
-        Log.warning("Done set up. Start running the analysis");
-        mcmc.initAndValidate();
-		mcmc.run();
+	private ChainSetup newChainSetup() {
+		ChainSetup setup = new ChainSetup();
+		setup.xml = XMLFileInput.get();
+		setup.logDir = logDirInput.get();
+		setup.burnInPercentage = burnInPercentageInput.get();
+		setup.alignmentCount = alignmentCountInput.get();
+		setup.threads = threadsInput.get();
+		setup.sampling = samplingInput.get();
+		setup.seed = seedInput.get();
+		setup.cacheDir = cacheDirInput.get();
+		setup.window = windowInput.get();
+		setup.sequentialBatch = sequentialBatchInput.get();
+		setup.alpha = alphaInput.get();
+		setup.tolerance = toleranceInput.get();
+		setup.likelihoodCacheSize = likelihoodCacheSizeInput.get();
+		setup.logAlignments = logAlignmentsInput.get();
+		setup.replicateLogDir = replicateLogDirInput.get();
+		setup.gzip = gzipInput.get();
+		setup.metrics = metrics;
+		setup.logMetrics = logMetricsInput.get();
+		return setup;
 	}
 
-	private TaxonSet getTaxonSet(Alignment data) {
-		TaxonSet taxonSet = new TaxonSet();
-		for (String taxon : data.getTaxaNames()) {
-			taxonSet.taxonsetInput.get().add(new Taxon(taxon));
+	private AlignmentListGenerator createGenerator() {
+		AlignmentListGenerator alg = setup.createGenerator();
+		if (checkpointDirInput.get() != null) {
+			checkpointDirInput.get().mkdirs();
+			alg.replicateFile = checkpointFile(REPLICATE_CHECKPOINT);
+			if (!resumeInput.get()) {
+				checkpointFile(REPLICATE_CHECKPOINT).delete();
+				checkpointFile(STATISTICS_CHECKPOINT).delete();
+			} else if (alg.replicateFile.exists()) {
+				Log.warning("Resuming from checkpoint " + checkpointDirInput.get().getPath());
+			}
+			if (windowInput.get() > 0) {
+				Log.warning("Alignments simulated on demand are not checkpointed, and are simulated again when resuming (specify a seed to get the same alignments)");
+			}
 		}
-		taxonSet.setID("newTaxonSet");
-		return taxonSet;
+		return alg;
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -0,0 +1,187 @@
+package modeladequacy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Runnable;
+import beast.core.util.Log;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+
+@Description("Runs the posterior predictive test statistics of a list of analyses in a single JVM. Jobs share a thread pool for simulation, "
+		+ "and analyses with identical XML or log files share parsed models and log file indices. Jobs only simulate alignments and calculate "
+		+ "test statistics: they do not run the MCMC over the simulated alignments, for which MA should be used per analysis")
+public class MABatch extends Runnable {
+	final public Input<File> manifestInput = new Input<>("manifest", "file with one job per line, with tab or space separated columns: XML file, log directory, "
+			+ "burn-in percentage, number of alignments and optionally the result file. Relative paths are relative to the directory of the manifest. "
+			+ "Empty lines and lines starting with # are ignored", Validate.REQUIRED);
+	final public Input<File> outputDirInput = new Input<>("outputDir", "directory to write result files to for jobs that do not specify one "
+			+ "(default the directory of the manifest)");
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for simulating alignments, shared by all jobs", 1);
+	final public Input<Integer> jobsInput = new Input<>("jobs", "number of jobs running at the same time", 1);
+	final public Input<AlignmentListGenerator.Sampling> samplingInput = new Input<>("sampling", "how to select log entries to simulate from: the first ones after burn-in, "
+			+ "evenly spaced entries over the whole post burn-in sample, or a random selection (using the seed)", AlignmentListGenerator.Sampling.first, AlignmentListGenerator.Sampling.values());
+	final public Input<Long> seedInput = new Input<>("seed", "seed for simulating alignments, used for every job (uses the BEAST seed if not specified)");
+	final public Input<File> cacheDirInput = new Input<>("cacheDir", "directory for caching simulated alignments (default no caching)");
+
+	/** a line of the manifest **/
+	static class Job {
+		final int line;
+		final File xml;
+		final File logDir;
+		final int burnInPercentage;
+		final int alignmentCount;
+		final File result;
+
+		Job(int line, File xml, File logDir, int burnInPercentage, int alignmentCount, File result) {
+			this.line = line;
+			this.xml = xml;
+			this.logDir = logDir;
+			this.burnInPercentage = burnInPercentage;
+			this.alignmentCount = alignmentCount;
+			this.result = result;
+		}
+	}
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		List<Job> jobs = readManifest(manifestInput.get());
+		Log.warning("Running " + jobs.size() + " jobs from " + manifestInput.get().getPath());
+
+		int threads = Math.max(1, threadsInput.get());
+		BatchResources resources = new BatchResources(threads);
+		ReplicateStatistics statistics = new ReplicateStatistics(ReplicateStatistics.defaultStatistics(), threads);
+		ExecutorService jobPool = Executors.newFixedThreadPool(Math.max(1, jobsInput.get()));
+		int failed = 0;
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Job job : jobs) {
+				futures.add(jobPool.submit(() -> {
+					runJob(job, resources, statistics);
+					return null;
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					// a failing job does not stop the others
+					Log.warning("Job on line " + jobs.get(i).line + " (" + jobs.get(i).xml.getPath() + ") failed: " + e.getCause().getMessage());
+					failed++;
+				}
+			}
+		} finally {
+			jobPool.shutdownNow();
+			statistics.shutdown();
+			resources.close();
+		}
+		if (failed > 0) {
+			throw new IOException(failed + " of " + jobs.size() + " jobs failed");
+		}
+		Log.warning("All " + jobs.size() + " jobs done");
+	}
+
+	/**
+	 * simulate alignments and write test statistics of the job. The MA chain is not run: rewiring a model for it
+	 * replaces its tree likelihoods, so the model could not be handed to later jobs, and every chain would
+	 * write to the log files named in the XML, which jobs sharing an XML would clash over.
+	 */
+	private void runJob(Job job, BatchResources resources, ReplicateStatistics statistics) throws IOException {
+		AlignmentListGenerator alg = new AlignmentListGenerator();
+		alg.XMLFileInput.setValue(job.xml, alg);
+		alg.logDirInput.setValue(job.logDir, alg);
+		alg.burnInPercentageInput.setValue(job.burnInPercentage, alg);
+		alg.alignmentCountInput.setValue(job.alignmentCount, alg);
+		alg.threadsInput.setValue(threadsInput.get(), alg);
+		alg.samplingInput.setValue(samplingInput.get(), alg);
+		if (seedInput.get() != null) {
+			alg.seedInput.setValue(seedInput.get(), alg);
+		}
+		if (cacheDirInput.get() != null) {
+			alg.cacheDirInput.setValue(cacheDirInput.get(), alg);
+		}
+		// the model is parsed in initAndValidate, so resources must be set first
+		alg.resources = resources;
+		alg.initAndValidate();
+		try {
+			List<AlignmentList> lists = alg.generateAlignmentLists();
+			List<GenericTreeLikelihood> treeLikelihoods = AlignmentListGenerator.getTreeLikelihoods(alg.mcmc);
+			List<ReplicateStatistics.Summary> summaries = new ArrayList<>();
+			for (int i = 0; i < lists.size(); i++) {
+				ReplicateStore store = lists.get(i).getReplicateStore();
+				ReplicateStore.Replicate observed = store.toReplicate(treeLikelihoods.get(i).dataInput.get());
+				summaries.addAll(statistics.summarise(treeLikelihoods.get(i).getID(), observed, store));
+			}
+			job.result.getAbsoluteFile().getParentFile().mkdirs();
+			PrintStream out = new PrintStream(job.result);
+			ReplicateStatistics.write(out, summaries);
+			out.close();
+			Log.warning("Job on line " + job.line + ": test statistics written to " + job.result.getPath());
+		} finally {
+			alg.close();
+		}
+	}
+
+	List<Job> readManifest(File manifest) throws IOException {
+		File dir = manifest.getAbsoluteFile().getParentFile();
+		File outputDir = outputDirInput.get() != null ? outputDirInput.get() : dir;
+		List<Job> jobs = new ArrayList<>();
+		BufferedReader fin = new BufferedReader(new FileReader(manifest));
+		try {
+			String str;
+			int line = 0;
+			while ((str = fin.readLine()) != null) {
+				line++;
+				str = str.trim();
+				if (str.length() == 0 || str.startsWith("#")) {
+					continue;
+				}
+				String [] columns = str.split("\\s+");
+				if (columns.length < 4) {
+					throw new IOException("Expected at least 4 columns on line " + line + " of " + manifest.getPath() + " but found " + columns.length);
+				}
+				File xml = resolve(dir, columns[0]);
+				File result;
+				if (columns.length > 4) {
+					result = resolve(dir, columns[4]);
+				} else {
+					String name = xml.getName().replaceAll("\\.xml$", "");
+					result = new File(outputDir, name + ".line" + line + ".statistics.tsv");
+				}
+				try {
+					jobs.add(new Job(line, xml, resolve(dir, columns[1]), Integer.parseInt(columns[2]), Integer.parseInt(columns[3]), result));
+				} catch (NumberFormatException e) {
+					throw new IOException("Expected integer burn-in and number of alignments on line " + line + " of " + manifest.getPath());
+				}
+			}
+		} finally {
+			fin.close();
+		}
+		return jobs;
+	}
+
+	private static File resolve(File dir, String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(dir, path);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new MABatch(), "Model Adequacy batch", args);
+	}
+}
@@ -0,0 +1,118 @@
+package modeladequacy;
+
+import beast.core.parameter.BooleanParameter;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.Parameter;
+import beast.core.parameter.RealParameter;
+
+/**
+ * Binds a parameter in the state to its trace log columns. A log entry is
+ * assigned by filling a private source parameter of the same type directly
+ * from the row of values, copying it into the parameter with a single
+ * assignFromFragile() and marking the parameter dirty once, instead of a
+ * setValue() call (and StateNode notification) per dimension.
+ */
+abstract class ParameterBinding {
+	final Parameter<?> parameter;
+	final int [] columns;
+
+	ParameterBinding(Parameter<?> parameter, int [] columns) {
+		this.parameter = parameter;
+		this.columns = columns;
+	}
+
+	/** set the parameter to the values in row at the bound columns **/
+	abstract void assign(double [] row);
+
+	static ParameterBinding bind(Parameter<?> parameter, int [] columns) {
+		if (parameter instanceof RealParameter) {
+			return new Bulk(parameter, columns, new RealSource(columns.length));
+		} else if (parameter instanceof IntegerParameter) {
+			return new Bulk(parameter, columns, new IntegerSource(columns.length));
+		} else if (parameter instanceof BooleanParameter) {
+			return new Bulk(parameter, columns, new BooleanSource(columns.length));
+		}
+		return new PerValue(parameter, columns);
+	}
+
+	/** source parameters with direct access to their value arrays **/
+	interface Source {
+		void fill(double [] row, int [] columns);
+	}
+
+	static class RealSource extends RealParameter implements Source {
+		RealSource(int dimension) {
+			super(new Double[dimension]);
+		}
+
+		@Override
+		public void fill(double [] row, int [] columns) {
+			for (int j = 0; j < columns.length; j++) {
+				values[j] = row[columns[j]];
+			}
+		}
+	}
+
+	static class IntegerSource extends IntegerParameter implements Source {
+		IntegerSource(int dimension) {
+			super(new Integer[dimension]);
+		}
+
+		@Override
+		public void fill(double [] row, int [] columns) {
+			for (int j = 0; j < columns.length; j++) {
+				values[j] = (int) Math.round(row[columns[j]]);
+			}
+		}
+	}
+
+	static class BooleanSource extends BooleanParameter implements Source {
+		BooleanSource(int dimension) {
+			super(new Boolean[dimension]);
+		}
+
+		@Override
+		public void fill(double [] row, int [] columns) {
+			for (int j = 0; j < columns.length; j++) {
+				values[j] = row[columns[j]] != 0;
+			}
+		}
+	}
+
+	static class Bulk extends ParameterBinding {
+		final Parameter.Base<?> source;
+
+		Bulk(Parameter<?> parameter, int [] columns, Parameter.Base<?> source) {
+			super(parameter, columns);
+			this.source = source;
+		}
+
+		@Override
+		void assign(double [] row) {
+			((Source) source).fill(row, columns);
+			Parameter.Base<?> target = (Parameter.Base<?>) parameter;
+			target.assignFromFragile(source);
+			target.setEverythingDirty(true);
+		}
+	}
+
+	/** parameters of other types get one setValue() per dimension, as before **/
+	static class PerValue extends ParameterBinding {
+		PerValue(Parameter<?> parameter, int [] columns) {
+			super(parameter, columns);
+		}
+
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		@Override
+		void assign(double [] row) {
+			Parameter param = parameter;
+			if (columns.length == 1) {
+				param.setValue(row[columns[0]]);
+			} else {
+				for (int j = 0; j < columns.length; j++) {
+					param.setValue(j, row[columns[j]]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package modeladequacy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.core.util.Log;
+import beast.evolution.datatype.DataType;
+
+/**
+ * Binary file holding simulated replicates of all partitions, so that later runs
+ * with the same XML, logs and settings can skip simulation. The file starts with
+ * a header containing seed, sample indices, partition headers (taxa, data type
+ * class, state and site counts) and the offset of
+ * every replicate, followed by one record per replicate:
+ * pattern count, width flag, weights and the taxon-major state matrix.
+ *
+ * Files are read through memory mapping, and replicates are only decoded when
+ * they are requested.
+ */
+class ReplicateCache {
+	final static int MAGIC = 0x4D415232; // "MAR2"
+	// replicates are mapped in chunks of at most this many bytes
+	final static long CHUNK_SIZE = 1L << 30;
+
+	/** cache file name for the settings. sequentialBatch is 0 if not simulating sequentially, in which case alpha and tolerance are ignored **/
+	static String key(File xml, List<File> logs, int burnInPercentage, int alignmentCount, AlignmentListGenerator.Sampling sampling, long seed,
+			int sequentialBatch, double alpha, double tolerance) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(xml.toPath()));
+			StringBuilder buf = new StringBuilder();
+			for (File log : logs) {
+				// logs can be large, so use name, size and modification time instead of content
+				buf.append(log.getAbsolutePath()).append(':').append(log.length()).append(':').append(log.lastModified()).append('\n');
+			}
+			buf.append(burnInPercentage).append(':').append(alignmentCount).append(':').append(sampling).append(':').append(seed);
+			if (sequentialBatch > 0) {
+				// sequential runs shuffle samples and may stop early
+				buf.append(":sequential:").append(sequentialBatch).append(':').append(alpha).append(':').append(tolerance);
+			}
+			digest.update(buf.toString().getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder("replicates-");
+			for (byte b : digest.digest()) {
+				key.append(String.format("%02x", b));
+			}
+			return key.append(".bin").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static void write(File file, long seed, int [] samples, ReplicateStore [] stores) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bytes);
+		header.writeInt(MAGIC);
+		header.writeLong(seed);
+		header.writeInt(samples.length);
+		for (int sample : samples) {
+			header.writeInt(sample);
+		}
+		header.writeInt(stores.length);
+		for (ReplicateStore store : stores) {
+			header.writeInt(store.getTaxonCount());
+			for (String taxon : store.getTaxaNames()) {
+				header.writeUTF(taxon);
+			}
+			header.writeUTF(store.getDataType().getClass().getName());
+			header.writeInt(store.maxStateCount);
+			header.writeInt(store.siteCount);
+			header.writeInt(store.getMaxPatternCount());
+		}
+		header.close();
+
+		// offsets follow the header, then come the records
+		long offset = bytes.size() + 8L * stores.length * samples.length;
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+			bytes.writeTo(out);
+			for (ReplicateStore store : stores) {
+				for (int i = 0; i < samples.length; i++) {
+					out.writeLong(offset);
+					offset += recordSize(store.get(i));
+				}
+			}
+			for (ReplicateStore store : stores) {
+				for (int i = 0; i < samples.length; i++) {
+					writeRecord(out, store.get(i));
+				}
+			}
+		}
+		// move into place only when complete, so an interrupted run never leaves a partial cache file
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static long recordSize(ReplicateStore.Replicate replicate) {
+		long states = (long) replicate.taxonCount * replicate.patternCount;
+		return 5 + 4L * replicate.patternCount + (replicate.states != null ? states : 2 * states);
+	}
+
+	private static void writeRecord(DataOutputStream out, ReplicateStore.Replicate replicate) throws IOException {
+		out.writeInt(replicate.patternCount);
+		out.writeBoolean(replicate.states == null);
+		for (int w : replicate.weights) {
+			out.writeInt(w);
+		}
+		if (replicate.states != null) {
+			out.write(replicate.states);
+		} else {
+			for (short s : replicate.wideStates) {
+				out.writeShort(s);
+			}
+		}
+	}
+
+	/** contents of a cache file, with replicates decoded on demand **/
+	static class Content {
+		long seed;
+		int [] samples;
+		ReplicateStore [] stores;
+	}
+
+	/**
+	 * read cache file. Headers are used for data types and are checked against the file.
+	 * @return content, or null if the file does not match headers
+	 */
+	static Content read(File file, ReplicateStore [] headers) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			FileHeader header = new FileHeader(channel);
+			if (!header.valid) {
+				Log.warning("Replicate cache " + file.getName() + " has an unknown format, ignoring it");
+				return null;
+			}
+			if (header.taxa.length != headers.length) {
+				Log.warning("Replicate cache " + file.getName() + " has " + header.taxa.length + " partitions instead of " + headers.length + ", ignoring it");
+				return null;
+			}
+			for (int p = 0; p < headers.length; p++) {
+				if (!header.taxa[p].equals(headers[p].getTaxaNames()) || header.maxStateCount[p] != headers[p].maxStateCount || header.siteCount[p] != headers[p].siteCount) {
+					Log.warning("Replicate cache " + file.getName() + " does not match data of partition " + p + ", ignoring it");
+					return null;
+				}
+			}
+			Content content = new Content();
+			content.seed = header.seed;
+			content.samples = header.samples;
+			content.stores = new ReplicateStore[headers.length];
+			for (int p = 0; p < headers.length; p++) {
+				MappedReplicates replicates = new MappedReplicates(channel, headers[p].getTaxonCount(), header.offsets[p]);
+				content.stores[p] = new ReplicateStore(headers[p], replicates, header.maxPatternCount[p]);
+			}
+			return content;
+		}
+	}
+
+	/**
+	 * read replicates of a single partition, without a model to take the header from.
+	 * @param dataType data type to use, or null to create one from the class recorded in the file
+	 */
+	static ReplicateStore readPartition(File file, int partition, DataType dataType) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			FileHeader header = new FileHeader(channel);
+			if (!header.valid) {
+				throw new IOException("Not a replicate file: " + file.getPath());
+			}
+			if (partition < 0 || partition >= header.taxa.length) {
+				throw new IllegalArgumentException("Partition " + partition + " not in replicate file " + file.getPath());
+			}
+			if (dataType == null) {
+				try {
+					dataType = (DataType) Class.forName(header.dataType[partition]).newInstance();
+					dataType.initAndValidate();
+				} catch (ReflectiveOperationException e) {
+					throw new IllegalArgumentException("Could not create data type " + header.dataType[partition] + ": " + e.getMessage());
+				}
+			}
+			ReplicateStore store = new ReplicateStore(header.taxa[partition], dataType, header.maxStateCount[partition], header.siteCount[partition]);
+			MappedReplicates replicates = new MappedReplicates(channel, store.getTaxonCount(), header.offsets[partition]);
+			return new ReplicateStore(store, replicates, header.maxPatternCount[partition]);
+		}
+	}
+
+	/** header of a replicate file **/
+	private static class FileHeader {
+		boolean valid;
+		long seed;
+		int [] samples;
+		// by partition
+		List<String> [] taxa;
+		String [] dataType;
+		int [] maxStateCount;
+		int [] siteCount;
+		int [] maxPatternCount;
+		// record offsets by partition, with the end of the last record of a partition being the start of the next partition
+		long [][] offsets;
+
+		@SuppressWarnings("unchecked")
+		FileHeader(FileChannel channel) throws IOException {
+			int headerSize = (int) Math.min(channel.size(), CHUNK_SIZE);
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize);
+			if (headerSize < 4 || in.getInt() != MAGIC) {
+				return;
+			}
+			seed = in.getLong();
+			samples = new int[in.getInt()];
+			for (int i = 0; i < samples.length; i++) {
+				samples[i] = in.getInt();
+			}
+			int partitionCount = in.getInt();
+			taxa = new List[partitionCount];
+			dataType = new String[partitionCount];
+			maxStateCount = new int[partitionCount];
+			siteCount = new int[partitionCount];
+			maxPatternCount = new int[partitionCount];
+			for (int p = 0; p < partitionCount; p++) {
+				taxa[p] = new ArrayList<>();
+				int taxonCount = in.getInt();
+				for (int j = 0; j < taxonCount; j++) {
+					taxa[p].add(readUTF(in));
+				}
+				dataType[p] = readUTF(in);
+				maxStateCount[p] = in.getInt();
+				siteCount[p] = in.getInt();
+				maxPatternCount[p] = in.getInt();
+			}
+			int count = samples.length;
+			offsets = new long[partitionCount][count + 1];
+			for (int p = 0; p < partitionCount; p++) {
+				for (int i = 0; i < count; i++) {
+					offsets[p][i] = in.getLong();
+				}
+			}
+			for (int p = 0; p < partitionCount; p++) {
+				offsets[p][count] = p + 1 < partitionCount ? offsets[p + 1][0] : channel.size();
+			}
+			valid = true;
+		}
+	}
+
+	private static String readUTF(ByteBuffer in) throws IOException {
+		byte [] bytes = new byte[in.getShort() & 0xffff];
+		in.get(bytes);
+		// DataOutputStream uses modified UTF-8, which equals UTF-8 for taxon names without \0 or surrogate pairs
+		return new String(bytes, "UTF-8");
+	}
+
+	/** replicates of one partition, decoded from memory mapped chunks of the file when requested **/
+	static class MappedReplicates extends AbstractList<ReplicateStore.Replicate> {
+		final int taxonCount;
+		final long [] offsets;
+		final MappedByteBuffer [] chunks;
+		final long [] chunkStart;
+		final int [] chunkOf;
+
+		/** map records in chunks of whole records, so every record can be read from a single buffer **/
+		MappedReplicates(FileChannel channel, int taxonCount, long [] offsets) throws IOException {
+			this.taxonCount = taxonCount;
+			this.offsets = offsets;
+			int count = size();
+			chunkOf = new int[count];
+			List<MappedByteBuffer> buffers = new ArrayList<>();
+			List<Long> starts = new ArrayList<>();
+			int first = 0;
+			while (first < count) {
+				int last = first + 1;
+				while (last < count && offsets[last + 1] - offsets[first] <= CHUNK_SIZE) {
+					last++;
+				}
+				for (int i = first; i < last; i++) {
+					chunkOf[i] = buffers.size();
+				}
+				starts.add(offsets[first]);
+				buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, offsets[first], offsets[last] - offsets[first]));
+				first = last;
+			}
+			chunks = buffers.toArray(new MappedByteBuffer[]{});
+			chunkStart = new long[starts.size()];
+			for (int i = 0; i < chunkStart.length; i++) {
+				chunkStart[i] = starts.get(i);
+			}
+		}
+
+		@Override
+		public ReplicateStore.Replicate get(int i) {
+			// duplicate, since buffer positions are not thread safe
+			ByteBuffer in = chunks[chunkOf[i]].duplicate();
+			in.position((int) (offsets[i] - chunkStart[chunkOf[i]]));
+			int patternCount = in.getInt();
+			boolean wide = in.get() != 0;
+			int [] weights = new int[patternCount];
+			in.asIntBuffer().get(weights);
+			in.position(in.position() + 4 * patternCount);
+			ReplicateStore.Replicate replicate = new ReplicateStore.Replicate(taxonCount, patternCount, weights, wide);
+			if (wide) {
+				in.asShortBuffer().get(replicate.wideStates);
+			} else {
+				in.get(replicate.states);
+			}
+			return replicate;
+		}
+
+		@Override
+		public int size() {
+			return offsets.length - 1;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package modeladequacy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.function.Consumer;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.core.parameter.IntegerParameter;
+
+@Description("Logger that writes a separate log file for every alignment of an AlignmentList, containing only the samples taken while "
+		+ "the indicator selects that alignment. Files are written on a background thread, so the MCMC does not wait for the disk")
+public class ReplicateLogger extends Logger {
+	final public Input<IntegerParameter> indicatorInput = new Input<>("indicator", "indicator selecting the current alignment", Validate.REQUIRED);
+	final public Input<Integer> offsetInput = new Input<>("offset", "number added to the indicator value in file names, "
+			+ "for chains running over part of the alignments", 0);
+	final public Input<Boolean> gzipInput = new Input<>("gzip", "whether to compress the log files with gzip (adds .gz to the file names)", false);
+	final public Input<Integer> queueSizeInput = new Input<>("queueSize", "number of log entries that can wait to be written before the MCMC has to wait", 1024);
+	final public Input<Integer> maxOpenFilesInput = new Input<>("maxOpenFiles", "maximum number of log files kept open at the same time", 64);
+
+	final static String REPLICATE_PATTERN = "$(replicate)";
+
+	IntegerParameter indicator;
+	AsyncReplicateWriter writer;
+	String header;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		indicator = indicatorInput.get();
+		if (fileNameInput.get() == null || !fileNameInput.get().contains(REPLICATE_PATTERN)) {
+			throw new IllegalArgumentException("fileName must contain " + REPLICATE_PATTERN + ", which is replaced by the number of the alignment");
+		}
+	}
+
+	@Override
+	public void init() throws IOException {
+		header = format(out -> {
+			if (mode == LOGMODE.compound) {
+				out.print("Sample\t");
+			}
+			for (BEASTObject loggable : loggersInput.get()) {
+				((Loggable) loggable).init(out);
+			}
+			out.println();
+		});
+		// the footer is needed up front, so that on resume it can be removed from files of the earlier run before appending
+		String footer = format(out -> {
+			for (BEASTObject loggable : loggersInput.get()) {
+				((Loggable) loggable).close(out);
+			}
+		});
+		writer = new AsyncReplicateWriter(queueSizeInput.get(), gzipInput.get(), maxOpenFilesInput.get(), FILE_MODE == LogFileMode.resume, footer);
+	}
+
+	@Override
+	public void log(long sample) {
+		if (sample < 0 || sample % everyInput.get() > 0) {
+			return;
+		}
+		// format on the calling thread, so the entry reflects the current state
+		String text = format(out -> {
+			if (mode == LOGMODE.compound) {
+				out.print(sample + "\t");
+			}
+			for (BEASTObject loggable : loggersInput.get()) {
+				((Loggable) loggable).log(sample, out);
+			}
+			out.println();
+		});
+		try {
+			writer.write(file(indicator.getValue()), header, text);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (writer == null) {
+			return;
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		writer = null;
+	}
+
+	File file(int alignment) {
+		String fileName = fileNameInput.get().replace(REPLICATE_PATTERN, (alignment + offsetInput.get()) + "");
+		return new File(gzipInput.get() && !fileName.endsWith(".gz") ? fileName + ".gz" : fileName);
+	}
+
+	/** text printed by printer **/
+	static String format(Consumer<PrintStream> printer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			PrintStream out = new PrintStream(bytes, false, "UTF-8");
+			printer.accept(out);
+			out.flush();
+			return bytes.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
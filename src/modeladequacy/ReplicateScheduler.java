@@ -0,0 +1,267 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.Operator;
+import beast.core.OperatorSchedule;
+import beast.core.Runnable;
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
+import beast.core.parameter.IntegerParameter;
+import beast.core.util.Log;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.util.Randomizer;
+
+@Description("Runs the model adequacy MCMC replicate by replicate, with a fixed number of burn-in and sampling steps "
+		+ "for every simulated alignment instead of a randomly timed indicator operator")
+public class ReplicateScheduler extends Runnable {
+	public enum WarmStart {previous, generating}
+
+	final public Input<File> XMLFileInput = new Input<>("xml", "XML file containing the BEAST model to simulate from. This file can be generated in BEAUti.", Validate.REQUIRED);
+	final public Input<File> logDirInput = new Input<>("logDir", "directory containing log files with a posterior sample of the XML analysis (uses current working dir if not specified)");
+	final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of log file to disregard as burn-in", 10);
+	final public Input<Integer> alignmentCountInput = new Input<>("alignments", "number of alignments to generate (must be less than number of entries in log file once burn-in is removed)", 100);
+	final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used for simulating alignments", 1);
+	final public Input<AlignmentListGenerator.Sampling> samplingInput = new Input<>("sampling", "how to select log entries to simulate from: the first ones after burn-in, "
+			+ "evenly spaced entries over the whole post burn-in sample, or a random selection (using the seed)", AlignmentListGenerator.Sampling.first, AlignmentListGenerator.Sampling.values());
+	final public Input<Long> seedInput = new Input<>("seed", "seed for simulating alignments (uses the BEAST seed if not specified)");
+	final public Input<File> cacheDirInput = new Input<>("cacheDir", "directory for caching simulated alignments, so later runs with the same XML, logs "
+			+ "and settings (including seed) do not need to simulate them again (default no caching)");
+	final public Input<Integer> windowInput = new Input<>("window", "if positive, alignments are simulated on demand while the scheduler runs, keeping only this many "
+			+ "alignments ahead of the current one in memory (default 0, simulate all alignments before running)", 0);
+	final public Input<Integer> likelihoodCacheSizeInput = new Input<>("likelihoodCacheSize", "maximum memory (in MB) used by the tree likelihood for caching likelihoods of "
+			+ "revisited alignments (default 0, no caching)", 0);
+	final public Input<Integer> logAlignmentsInput = new Input<>("logAlignments", "number of alignments (starting at the first) whose likelihoods under the "
+			+ "current tree and parameters the tree likelihoods log as extra columns, calculated in a single pass at every log entry. Negative for all alignments (default 0, none)", 0);
+	final public Input<File> replicateLogDirInput = new Input<>("replicateLogDir", "if specified, every trace and tree log of the analysis is also written "
+			+ "as one file per alignment to this directory, holding only the samples taken while running over that alignment (default no per alignment logs)");
+	final public Input<Boolean> gzipInput = new Input<>("gzip", "whether to gzip the per alignment logs", false);
+
+	final public Input<Long> burnInStepsInput = new Input<>("burnInSteps", "number of MCMC steps after switching to an alignment before sampling starts", 10000L);
+	final public Input<Long> samplingStepsInput = new Input<>("samplingSteps", "number of MCMC steps sampled for every alignment", 100000L);
+	final public Input<File> summaryFileInput = new Input<>("summary", "file to write a summary line for every alignment to. "
+			+ "An existing file is only overwritten in overwrite mode", Validate.REQUIRED);
+	final public Input<WarmStart> startFromInput = new Input<>("startFrom", "state to start an alignment from: the state at the end of the previous alignment, "
+			+ "or the posterior sample the alignment was simulated from. A snapshot of an alignment's own earlier block takes precedence over both", WarmStart.previous, WarmStart.values());
+	// only the scheduler has snapshots: MA's indicator operator jumps between alignments at random, so its alignments have no blocks to end
+	final public Input<File> snapshotDirInput = new Input<>("snapshotDir", "directory to store the state at the end of every alignment's block in. "
+			+ "Snapshots found there are used as starting states when running again (default no snapshots)");
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		// checked when running, since the file mode may be set after the inputs
+		File summaryFile = summaryFileInput.get();
+		if (summaryFile.exists() && Logger.FILE_MODE != Logger.LogFileMode.overwrite) {
+			throw new IllegalArgumentException("Summary file " + summaryFile.getPath() + " already exists: remove it, or use overwrite mode");
+		}
+        Log.warning("Setting up the analysis");
+		ChainSetup setup = newChainSetup();
+		AlignmentListGenerator alg = setup.createGenerator();
+		List<AlignmentList> lists = alg.generateAlignmentLists();
+		MCMC mcmc = alg.mcmc;
+		setup.setUpChain(mcmc, lists);
+		// the indicator is set by the scheduler only
+		mcmc.operatorsInput.get().removeIf(operator -> operator instanceof IndicatorOperator);
+		mcmc.initAndValidate();
+
+		State state = mcmc.startStateInput.get();
+		IntegerParameter indicator = null;
+		for (StateNode stateNode : state.stateNodeInput.get()) {
+			if (ChainSetup.INDICATOR_ID.equals(stateNode.getID())) {
+				indicator = (IntegerParameter) stateNode;
+			}
+		}
+		List<GenericTreeLikelihood> treeLikelihoods = AlignmentListGenerator.getTreeLikelihoods(mcmc);
+
+		PrintStream summary = new PrintStream(summaryFileInput.get());
+		summary.print("replicate\tlogEntry\tposterior");
+		for (GenericTreeLikelihood treeLikelihood : treeLikelihoods) {
+			summary.print("\t" + treeLikelihood.getID());
+		}
+		summary.println("\tacceptance");
+
+		Scheduler scheduler = new Scheduler(mcmc, state, alg);
+		for (Logger logger : mcmc.loggersInput.get()) {
+			logger.init();
+		}
+        Log.warning("Done set up. Start running " + (indicator.getUpper() + 1) + " alignments");
+		try {
+			for (int replicate = 0; replicate <= indicator.getUpper(); replicate++) {
+				scheduler.runReplicate(indicator, replicate, treeLikelihoods);
+				summary.print(replicate + "\t" + (alg.samples != null ? alg.samples[replicate] : -1) + "\t" + scheduler.meanPosterior);
+				for (double logP : scheduler.meanLogP) {
+					summary.print("\t" + logP);
+				}
+				summary.println("\t" + scheduler.acceptance);
+				summary.flush();
+			}
+		} finally {
+			for (Logger logger : mcmc.loggersInput.get()) {
+				logger.close();
+			}
+			summary.close();
+			alg.close();
+		}
+	}
+
+	private ChainSetup newChainSetup() {
+		ChainSetup setup = new ChainSetup();
+		setup.xml = XMLFileInput.get();
+		setup.logDir = logDirInput.get();
+		setup.burnInPercentage = burnInPercentageInput.get();
+		setup.alignmentCount = alignmentCountInput.get();
+		setup.threads = threadsInput.get();
+		setup.sampling = samplingInput.get();
+		setup.seed = seedInput.get();
+		setup.cacheDir = cacheDirInput.get();
+		setup.window = windowInput.get();
+		setup.likelihoodCacheSize = likelihoodCacheSizeInput.get();
+		setup.logAlignments = logAlignmentsInput.get();
+		setup.replicateLogDir = replicateLogDirInput.get();
+		setup.gzip = gzipInput.get();
+		return setup;
+	}
+
+	/** Metropolis-Hastings steps as in MCMC.doLoop(), with the indicator fixed within a block **/
+	class Scheduler {
+		final MCMC mcmc;
+		final State state;
+		final Distribution posterior;
+		final OperatorSchedule operatorSchedule;
+		final long burnInSteps;
+		final long samplingSteps;
+		long sample;
+		double logP;
+
+		double meanPosterior;
+		double [] meanLogP;
+		double acceptance;
+
+		final AlignmentListGenerator alg;
+
+		Scheduler(MCMC mcmc, State state, AlignmentListGenerator alg) {
+			this.mcmc = mcmc;
+			this.state = state;
+			this.alg = alg;
+			if (snapshotDirInput.get() != null) {
+				snapshotDirInput.get().mkdirs();
+			}
+			posterior = mcmc.posteriorInput.get();
+			operatorSchedule = mcmc.operatorScheduleInput.get();
+			burnInSteps = burnInStepsInput.get();
+			samplingSteps = samplingStepsInput.get();
+
+			// state was initialised by mcmc.initAndValidate()
+			state.setEverythingDirty(true);
+			for (StateNodeInitialiser initialiser : mcmc.initialisersInput.get()) {
+				initialiser.initStateNodes();
+			}
+		}
+
+		void runReplicate(IntegerParameter indicator, int replicate, List<GenericTreeLikelihood> treeLikelihoods) throws IOException {
+			// every replicate runs once, so snapshots are only of use to later runs, and only read from and written to disk
+			File snapshot = snapshotDirInput.get() != null ? snapshotFile(replicate) : null;
+			if (snapshot != null && snapshot.exists()) {
+				state.fromXML(new String(Files.readAllBytes(snapshot.toPath()), "UTF-8"));
+			} else if (startFromInput.get() == WarmStart.generating) {
+				alg.restoreSample(mcmc, replicate);
+			}
+			// switch alignment, and recalculate everything once
+			indicator.setValue(replicate);
+			logP = state.robustlyCalcPosterior(posterior);
+
+			for (long i = 0; i < burnInSteps; i++) {
+				step();
+			}
+
+			meanPosterior = 0;
+			meanLogP = new double[treeLikelihoods.size()];
+			long accepted = 0;
+			for (long i = 0; i < samplingSteps; i++) {
+				if (step()) {
+					accepted++;
+				}
+				meanPosterior += logP;
+				for (int k = 0; k < meanLogP.length; k++) {
+					meanLogP[k] += treeLikelihoods.get(k).getCurrentLogP();
+				}
+				for (Logger logger : mcmc.loggersInput.get()) {
+					logger.log(sample);
+				}
+				sample++;
+			}
+			meanPosterior /= samplingSteps;
+			for (int k = 0; k < meanLogP.length; k++) {
+				meanLogP[k] /= samplingSteps;
+			}
+			acceptance = (double) accepted / samplingSteps;
+
+			if (snapshot != null) {
+				// write to a temporary file first, so an interrupted run never leaves a truncated snapshot to start from
+				File tmp = new File(snapshot.getPath() + ".tmp");
+				Files.write(tmp.toPath(), state.toXML(sample).getBytes("UTF-8"));
+				Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		private File snapshotFile(int replicate) {
+			return new File(snapshotDirInput.get(), "replicate" + replicate + ".state.xml");
+		}
+
+		/** single Metropolis-Hastings step, returns whether the proposal was accepted **/
+		boolean step() {
+			state.store(sample);
+			Operator operator = operatorSchedule.selectOperator();
+			double logHastingsRatio = operator.proposal();
+			if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+				operator.reject();
+				state.restore();
+				if (!operator.requiresStateInitialisation()) {
+					state.setEverythingDirty(false);
+					state.restoreCalculationNodes();
+				}
+				return false;
+			}
+			if (operator.requiresStateInitialisation()) {
+				state.storeCalculationNodes();
+				state.checkCalculationNodesDirtiness();
+			}
+			double newLogP = posterior.calculateLogP();
+			double logAlpha = newLogP - logP + logHastingsRatio;
+			boolean accept = logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha);
+			if (accept) {
+				logP = newLogP;
+				state.acceptCalculationNodes();
+				operator.accept();
+			} else {
+				operator.reject();
+				state.restore();
+				state.restoreCalculationNodes();
+			}
+			state.setEverythingDirty(false);
+			operator.optimize(logAlpha);
+			return accept;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new ReplicateScheduler(), "Model Adequacy replicate scheduler", args);
+	}
+}
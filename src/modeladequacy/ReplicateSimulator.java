@@ -0,0 +1,251 @@
+package modeladequacy;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Simulates alignments along a tree like beast.app.seqgen.SequenceSimulator,
+ * but draws all random numbers from a caller supplied Random instead of the
+ * global Randomizer, so a replicate only depends on its own seed and
+ * replicates can be simulated concurrently on separate model graphs.
+ *
+ * Sites are simulated one at a time and site columns are pattern compressed
+ * on the fly through a hash table, so no sequences are ever built.
+ */
+class ReplicateSimulator {
+	final Tree tree;
+	final SiteModel.Base siteModel;
+	final BranchRateModel branchRateModel;
+	final int sequenceLength;
+	final int stateCount;
+	final int categoryCount;
+	final double [] probabilities;
+	// cumulative transition probabilities by node and category
+	final double [][][] cumulativeProbabilities;
+
+	// nodes in pre-order, and states of nodes at the current site
+	Node [] order;
+	int [] parent;
+	int [] nodeStates;
+	// node numbers of leafs and their taxon index in the replicate
+	int [] leafNr;
+	int [] leafTaxon;
+	int leafCount;
+
+	// patterns found so far, stored pattern by pattern
+	int [] patterns;
+	int [] weights;
+	int [] hashes;
+	int patternCount;
+	int [] table;
+	int [] column;
+
+	ReplicateSimulator(Tree tree, SiteModel.Base siteModel, BranchRateModel branchRateModel, Alignment data) {
+		this.tree = tree;
+		this.siteModel = siteModel;
+		this.branchRateModel = branchRateModel;
+		sequenceLength = data.getSiteCount();
+		stateCount = data.getMaxStateCount();
+		categoryCount = siteModel.getCategoryCount();
+		probabilities = new double[stateCount * stateCount];
+		cumulativeProbabilities = new double[tree.getNodeCount()][categoryCount][stateCount * stateCount];
+		order = new Node[tree.getNodeCount()];
+		parent = new int[tree.getNodeCount()];
+		nodeStates = new int[tree.getNodeCount()];
+		leafNr = new int[tree.getNodeCount()];
+		leafTaxon = new int[tree.getNodeCount()];
+	}
+
+	/** simulate a single alignment from the current state of the model, and compress it
+	 * into a replicate with the taxa of store **/
+	ReplicateStore.Replicate simulate(Random random, ReplicateStore store) {
+		int taxonCount = store.getTaxonCount();
+		Node root = tree.getRoot();
+		setUpTraversal(root, store);
+		setUpTransitionProbabilities();
+		initPatterns(taxonCount);
+
+		double [] categoryProbs = siteModel.getCategoryProportions(root);
+		double [] frequencies = siteModel.getSubstitutionModel().getFrequencies();
+		int nodeCount = tree.getNodeCount();
+
+		for (int i = 0; i < sequenceLength; i++) {
+			int category = randomChoicePDF(categoryProbs, random);
+			nodeStates[order[0].getNr()] = randomChoicePDF(frequencies, random);
+			for (int k = 1; k < nodeCount; k++) {
+				int nr = order[k].getNr();
+				double [] p = cumulativeProbabilities[nr][category];
+				nodeStates[nr] = randomChoice(p, nodeStates[parent[k]] * stateCount, random);
+			}
+			for (int k = 0; k < leafCount; k++) {
+				column[leafTaxon[k]] = nodeStates[leafNr[k]];
+			}
+			int hash = 0;
+			for (int j = 0; j < taxonCount; j++) {
+				hash = 31 * hash + column[j];
+			}
+			addColumn(hash, taxonCount);
+		}
+
+		ReplicateStore.Replicate replicate = new ReplicateStore.Replicate(taxonCount, patternCount,
+				Arrays.copyOf(weights, patternCount), stateCount > Byte.MAX_VALUE);
+		for (int i = 0; i < patternCount; i++) {
+			int offset = i * taxonCount;
+			for (int j = 0; j < taxonCount; j++) {
+				replicate.set(j, i, patterns[offset + j]);
+			}
+		}
+		return replicate;
+	}
+
+	/** determine pre-order of nodes, and taxon index of leafs **/
+	private void setUpTraversal(Node root, ReplicateStore store) {
+		int n = 0;
+		leafCount = 0;
+		order[n++] = root;
+		for (int k = 0; k < n; k++) {
+			Node node = order[k];
+			if (node.isLeaf()) {
+				leafNr[leafCount] = node.getNr();
+				leafTaxon[leafCount] = store.getTaxonIndex(node.getID());
+				if (leafTaxon[leafCount] < 0) {
+					throw new IllegalArgumentException("Taxon " + node.getID() + " in tree but not in data");
+				}
+				leafCount++;
+			}
+			for (Node child : node.getChildren()) {
+				parent[n] = node.getNr();
+				order[n++] = child;
+			}
+		}
+	}
+
+	private void setUpTransitionProbabilities() {
+		for (int k = 1; k < order.length; k++) {
+			Node node = order[k];
+			double branchRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+			for (int i = 0; i < categoryCount; i++) {
+				double rate = branchRate * siteModel.getRateForCategory(i, node);
+				siteModel.getSubstitutionModel().getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(), rate, probabilities);
+				double [] cumulative = cumulativeProbabilities[node.getNr()][i];
+				for (int from = 0; from < stateCount; from++) {
+					double sum = 0;
+					for (int to = 0; to < stateCount; to++) {
+						sum += probabilities[from * stateCount + to];
+						cumulative[from * stateCount + to] = sum;
+					}
+				}
+			}
+		}
+	}
+
+	private void initPatterns(int taxonCount) {
+		if (column == null || column.length != taxonCount) {
+			column = new int[taxonCount];
+			patterns = new int[1024 * taxonCount];
+			weights = new int[1024];
+			hashes = new int[1024];
+			table = new int[2048];
+		}
+		patternCount = 0;
+		Arrays.fill(table, -1);
+	}
+
+	/** add site in column to the patterns, either as new pattern or by increasing weight of existing one **/
+	private void addColumn(int hash, int taxonCount) {
+		int mask = table.length - 1;
+		int slot = mix(hash) & mask;
+		while (table[slot] >= 0) {
+			int candidate = table[slot];
+			if (hashes[candidate] == hash && sameColumn(candidate, taxonCount)) {
+				weights[candidate]++;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (patternCount == weights.length) {
+			patterns = Arrays.copyOf(patterns, patterns.length * 2);
+			weights = Arrays.copyOf(weights, weights.length * 2);
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		}
+		System.arraycopy(column, 0, patterns, patternCount * taxonCount, taxonCount);
+		weights[patternCount] = 1;
+		hashes[patternCount] = hash;
+		table[slot] = patternCount;
+		patternCount++;
+		if (2 * patternCount > table.length) {
+			rehash();
+		}
+	}
+
+	private boolean sameColumn(int pattern, int taxonCount) {
+		int offset = pattern * taxonCount;
+		for (int j = 0; j < taxonCount; j++) {
+			if (patterns[offset + j] != column[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		table = new int[table.length * 2];
+		Arrays.fill(table, -1);
+		int mask = table.length - 1;
+		for (int i = 0; i < patternCount; i++) {
+			int slot = mix(hashes[i]) & mask;
+			while (table[slot] >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = i;
+		}
+	}
+
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	/** draw from a row of cumulative transition probabilities starting at offset **/
+	private int randomChoice(double [] cumulative, int offset, Random random) {
+		double u = random.nextDouble() * cumulative[offset + stateCount - 1];
+		for (int j = 0; j < stateCount - 1; j++) {
+			if (u < cumulative[offset + j]) {
+				return j;
+			}
+		}
+		return stateCount - 1;
+	}
+
+	static int randomChoicePDF(double [] pdf, Random random) {
+		double sum = 0;
+		for (double d : pdf) {
+			sum += d;
+		}
+		double u = random.nextDouble() * sum;
+		for (int i = 0; i < pdf.length - 1; i++) {
+			u -= pdf[i];
+			if (u < 0) {
+				return i;
+			}
+		}
+		return pdf.length - 1;
+	}
+
+	/** deterministic seed for replicate i that does not depend on the order in which replicates are simulated **/
+	static long replicateSeed(long seed, int i) {
+		// SplitMix64 finaliser
+		long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
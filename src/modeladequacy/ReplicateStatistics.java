@@ -0,0 +1,307 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Posterior predictive test statistics, calculated directly on the pattern
+ * matrices of the replicates in parallel, and compared with the statistics of
+ * the observed alignment.
+ */
+class ReplicateStatistics {
+	// replicates per fork-join task
+	final static int GRAIN = 8;
+
+	/** statistic of a single alignment given as site patterns **/
+	static abstract class Statistic {
+		final String name;
+
+		Statistic(String name) {
+			this.name = name;
+		}
+
+		abstract double calculate(ReplicateStore.Replicate replicate, int stateCount);
+	}
+
+	/** multinomial log likelihood of the alignment: sum over patterns of w log(w/n) **/
+	static class MultinomialLikelihood extends Statistic {
+		MultinomialLikelihood() {
+			super("multinomial");
+		}
+
+		@Override
+		double calculate(ReplicateStore.Replicate replicate, int stateCount) {
+			int [] weights = replicate.weights;
+			double n = 0;
+			for (int i = 0; i < replicate.patternCount; i++) {
+				n += weights[i];
+			}
+			double logL = 0;
+			for (int i = 0; i < replicate.patternCount; i++) {
+				if (weights[i] > 0) {
+					logL += weights[i] * Math.log(weights[i] / n);
+				}
+			}
+			return logL;
+		}
+	}
+
+	static class UniquePatterns extends Statistic {
+		UniquePatterns() {
+			super("uniquePatterns");
+		}
+
+		@Override
+		double calculate(ReplicateStore.Replicate replicate, int stateCount) {
+			int count = 0;
+			for (int i = 0; i < replicate.patternCount; i++) {
+				if (replicate.weights[i] > 0) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/** chi-square statistic of state frequencies per taxon against overall state frequencies, summed over taxa. Ambiguous codes are ignored **/
+	static class CompositionChiSquare extends Statistic {
+		CompositionChiSquare() {
+			super("compositionChiSquare");
+		}
+
+		@Override
+		double calculate(ReplicateStore.Replicate replicate, int stateCount) {
+			int taxonCount = replicate.taxonCount;
+			double [] counts = new double[taxonCount * stateCount];
+			for (int j = 0; j < taxonCount; j++) {
+				for (int i = 0; i < replicate.patternCount; i++) {
+					int state = replicate.get(j, i);
+					if (state >= 0 && state < stateCount) {
+						counts[j * stateCount + state] += replicate.weights[i];
+					}
+				}
+			}
+			double [] stateTotals = new double[stateCount];
+			double [] taxonTotals = new double[taxonCount];
+			double total = 0;
+			for (int j = 0; j < taxonCount; j++) {
+				for (int k = 0; k < stateCount; k++) {
+					stateTotals[k] += counts[j * stateCount + k];
+					taxonTotals[j] += counts[j * stateCount + k];
+				}
+				total += taxonTotals[j];
+			}
+			double chiSquare = 0;
+			for (int j = 0; j < taxonCount; j++) {
+				for (int k = 0; k < stateCount; k++) {
+					double expected = taxonTotals[j] * stateTotals[k] / total;
+					if (expected > 0) {
+						double d = counts[j * stateCount + k] - expected;
+						chiSquare += d * d / expected;
+					}
+				}
+			}
+			return chiSquare;
+		}
+	}
+
+	/** fraction of sites where all taxa have the same state **/
+	static class InvariantSites extends Statistic {
+		InvariantSites() {
+			super("invariantSites");
+		}
+
+		@Override
+		double calculate(ReplicateStore.Replicate replicate, int stateCount) {
+			double invariant = 0, n = 0;
+			for (int i = 0; i < replicate.patternCount; i++) {
+				n += replicate.weights[i];
+				int state = replicate.get(0, i);
+				boolean isConstant = state >= 0 && state < stateCount;
+				for (int j = 1; j < replicate.taxonCount && isConstant; j++) {
+					isConstant = replicate.get(j, i) == state;
+				}
+				if (isConstant) {
+					invariant += replicate.weights[i];
+				}
+			}
+			return invariant / n;
+		}
+	}
+
+	static List<Statistic> defaultStatistics() {
+		return Arrays.asList(new MultinomialLikelihood(), new UniquePatterns(), new CompositionChiSquare(), new InvariantSites());
+	}
+
+	final List<Statistic> statistics;
+	final ForkJoinPool pool;
+
+	ReplicateStatistics(List<Statistic> statistics, int threads) {
+		this.statistics = statistics;
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+	}
+
+	/** statistics of replicates from..to-1 of store, by replicate then statistic **/
+	double [][] calculate(ReplicateStore store, int from, int to) {
+		double [][] values = new double[to - from][];
+		pool.invoke(new Task(store, from, to, from, values));
+		return values;
+	}
+
+	double [] calculate(ReplicateStore.Replicate replicate, int stateCount) {
+		double [] values = new double[statistics.size()];
+		for (int k = 0; k < values.length; k++) {
+			values[k] = statistics.get(k).calculate(replicate, stateCount);
+		}
+		return values;
+	}
+
+	void shutdown() {
+		pool.shutdown();
+	}
+
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final ReplicateStore store;
+		final int from, to, offset;
+		final double [][] values;
+
+		Task(ReplicateStore store, int from, int to, int offset, double [][] values) {
+			this.store = store;
+			this.from = from;
+			this.to = to;
+			this.offset = offset;
+			this.values = values;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= GRAIN) {
+				for (int i = from; i < to; i++) {
+					values[i - offset] = calculate(store.get(i), store.maxStateCount);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Task(store, from, mid, offset, values), new Task(store, mid, to, offset, values));
+			}
+		}
+	}
+
+	/** observed value and replicate values of a statistic for a partition **/
+	static class Summary {
+		final String partition;
+		final String statistic;
+		final double observed;
+		final List<Double> values = new ArrayList<>();
+
+		Summary(String partition, String statistic, double observed) {
+			this.partition = partition;
+			this.statistic = statistic;
+			this.observed = observed;
+		}
+
+		/** fraction of replicates with value at most the observed value **/
+		double lowerP() {
+			int count = 0;
+			for (double v : values) {
+				if (v <= observed) {
+					count++;
+				}
+			}
+			return (double) count / values.size();
+		}
+
+		/** fraction of replicates with value at least the observed value **/
+		double upperP() {
+			int count = 0;
+			for (double v : values) {
+				if (v >= observed) {
+					count++;
+				}
+			}
+			return (double) count / values.size();
+		}
+
+		double mean() {
+			double sum = 0;
+			for (double v : values) {
+				sum += v;
+			}
+			return sum / values.size();
+		}
+
+		double stdev() {
+			double mean = mean(), sum = 0;
+			for (double v : values) {
+				sum += (v - mean) * (v - mean);
+			}
+			return Math.sqrt(sum / (values.size() - 1));
+		}
+	}
+
+	/** statistics of the observed data and all replicates in store, one summary per statistic **/
+	List<Summary> summarise(String partition, ReplicateStore.Replicate observed, ReplicateStore store) {
+		List<Summary> summaries = new ArrayList<>();
+		double [] observedValues = calculate(observed, store.maxStateCount);
+		for (int k = 0; k < statistics.size(); k++) {
+			summaries.add(new Summary(partition, statistics.get(k).name, observedValues[k]));
+		}
+		add(summaries, calculate(store, 0, store.getReplicateCount()));
+		return summaries;
+	}
+
+	static void add(List<Summary> summaries, double [][] values) {
+		for (double [] row : values) {
+			for (int k = 0; k < row.length; k++) {
+				summaries.get(k).values.add(row[k]);
+			}
+		}
+	}
+
+	/** save observed and replicate values of summaries, one summary per line, so they can be loaded when resuming **/
+	static void save(File file, List<Summary> summaries) throws IOException {
+		PrintStream out = new PrintStream(file);
+		for (Summary s : summaries) {
+			out.print(s.partition + "\t" + s.statistic + "\t" + s.observed);
+			for (double v : s.values) {
+				out.print("\t" + v);
+			}
+			out.println();
+		}
+		out.close();
+		if (out.checkError()) {
+			throw new IOException("Could not write " + file.getPath());
+		}
+	}
+
+	static List<Summary> load(File file) throws IOException {
+		List<Summary> summaries = new ArrayList<>();
+		for (String str : Files.readAllLines(file.toPath())) {
+			if (str.trim().length() == 0) {
+				continue;
+			}
+			String [] values = str.split("\t");
+			Summary s = new Summary(values[0], values[1], Double.parseDouble(values[2]));
+			for (int i = 3; i < values.length; i++) {
+				s.values.add(Double.parseDouble(values[i]));
+			}
+			summaries.add(s);
+		}
+		return summaries;
+	}
+
+	static void write(PrintStream out, List<Summary> summaries) {
+		out.println("partition\tstatistic\tobserved\treplicates\tmean\tstdev\tlowerP\tupperP\ttwoSidedP");
+		for (Summary s : summaries) {
+			out.println(s.partition + "\t" + s.statistic + "\t" + s.observed + "\t" + s.values.size() + "\t" + s.mean() + "\t" + s.stdev() + "\t" +
+					s.lowerP() + "\t" + s.upperP() + "\t" + Math.min(1.0, 2 * Math.min(s.lowerP(), s.upperP())));
+		}
+	}
+}
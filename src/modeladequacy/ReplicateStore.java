@@ -0,0 +1,214 @@
+package modeladequacy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+
+/**
+ * Compact storage for a set of alignments that share taxa, data type and
+ * number of sites. Taxa and data type are stored once, and every replicate
+ * only holds its site patterns as a byte (or short if the data type has
+ * many codes) matrix plus pattern weights.
+ */
+public class ReplicateStore {
+	final List<String> taxaNames;
+	final Map<String, Integer> taxonIndex;
+	final DataType dataType;
+	final int maxStateCount;
+	final int siteCount;
+	final List<Integer> stateCounts;
+	final List<Replicate> replicates;
+	int maxPatternCount;
+
+	public ReplicateStore(List<String> taxaNames, DataType dataType, int maxStateCount, int siteCount) {
+		this.taxaNames = Collections.unmodifiableList(new ArrayList<>(taxaNames));
+		this.taxonIndex = new HashMap<>();
+		for (int i = 0; i < taxaNames.size(); i++) {
+			taxonIndex.put(taxaNames.get(i), i);
+		}
+		this.dataType = dataType;
+		this.maxStateCount = maxStateCount;
+		this.siteCount = siteCount;
+		List<Integer> stateCounts = new ArrayList<>();
+		for (int i = 0; i < taxaNames.size(); i++) {
+			stateCounts.add(maxStateCount);
+		}
+		this.stateCounts = Collections.unmodifiableList(stateCounts);
+		replicates = new ArrayList<>();
+	}
+
+	/** store with same header as alignment **/
+	public ReplicateStore(Alignment alignment) {
+		this(alignment.getTaxaNames(), alignment.getDataType(), alignment.getMaxStateCount(), alignment.getSiteCount());
+	}
+
+	/** store with header of other, over a given (possibly lazily loaded) list of replicates **/
+	ReplicateStore(ReplicateStore header, List<Replicate> replicates, int maxPatternCount) {
+		this.taxaNames = header.taxaNames;
+		this.taxonIndex = header.taxonIndex;
+		this.dataType = header.dataType;
+		this.maxStateCount = header.maxStateCount;
+		this.siteCount = header.siteCount;
+		this.stateCounts = header.stateCounts;
+		this.replicates = replicates;
+		this.maxPatternCount = maxPatternCount;
+	}
+
+	/** store sharing header and replicates from..to-1 of other **/
+	public ReplicateStore subStore(int from, int to) {
+		// a view, so replicates that are loaded or simulated on demand are not all materialised
+		return new ReplicateStore(this, replicates.subList(from, to), maxPatternCount);
+	}
+
+	public void add(Replicate replicate) {
+		replicates.add(replicate);
+		maxPatternCount = Math.max(maxPatternCount, replicate.patternCount);
+	}
+
+	/** compress alignment and add it to the store **/
+	public void add(Alignment alignment) {
+		add(toReplicate(alignment));
+	}
+
+	public Replicate get(int i) {
+		return replicates.get(i);
+	}
+
+	public int getReplicateCount() {
+		return replicates.size();
+	}
+
+	public int getTaxonCount() {
+		return taxaNames.size();
+	}
+
+	public int getMaxPatternCount() {
+		return maxPatternCount;
+	}
+
+	public int getSiteCount() {
+		return siteCount;
+	}
+
+	public DataType getDataType() {
+		return dataType;
+	}
+
+	public List<String> getTaxaNames() {
+		return taxaNames;
+	}
+
+	/** index of taxon in the store, or -1 if not present **/
+	public int getTaxonIndex(String taxon) {
+		Integer i = taxonIndex.get(taxon);
+		return i == null ? -1 : i;
+	}
+
+	Replicate toReplicate(Alignment alignment) {
+		int taxonCount = taxaNames.size();
+		int patternCount = alignment.getPatternCount();
+		int [] weights = new int[patternCount];
+		for (int i = 0; i < patternCount; i++) {
+			weights[i] = alignment.getPatternWeight(i);
+		}
+		int [] taxonMap = new int[taxonCount];
+		boolean wide = false;
+		for (int j = 0; j < taxonCount; j++) {
+			taxonMap[j] = alignment.getTaxonIndex(taxaNames.get(j));
+			if (taxonMap[j] < 0) {
+				throw new IllegalArgumentException("Taxon " + taxaNames.get(j) + " missing from alignment " + alignment.getID());
+			}
+			for (int i = 0; i < patternCount; i++) {
+				int code = alignment.getPattern(taxonMap[j], i);
+				if (code < Byte.MIN_VALUE || code > Byte.MAX_VALUE) {
+					wide = true;
+				}
+			}
+		}
+		Replicate replicate = new Replicate(taxonCount, patternCount, weights, wide);
+		for (int j = 0; j < taxonCount; j++) {
+			for (int i = 0; i < patternCount; i++) {
+				replicate.set(j, i, alignment.getPattern(taxonMap[j], i));
+			}
+		}
+		return replicate;
+	}
+
+	/** site patterns and weights of a single alignment, stored taxon by taxon **/
+	public static class Replicate {
+		final int taxonCount;
+		final int patternCount;
+		final int [] weights;
+		final byte [] states;
+		final short [] wideStates;
+
+		public Replicate(int taxonCount, int patternCount, int [] weights, boolean wide) {
+			this.taxonCount = taxonCount;
+			this.patternCount = patternCount;
+			this.weights = weights;
+			if (wide) {
+				states = null;
+				wideStates = new short[taxonCount * patternCount];
+			} else {
+				states = new byte[taxonCount * patternCount];
+				wideStates = null;
+			}
+		}
+
+		public int getPatternCount() {
+			return patternCount;
+		}
+
+		public int getPatternWeight(int patternIndex) {
+			return weights[patternIndex];
+		}
+
+		public int [] getWeights() {
+			return weights;
+		}
+
+		public int get(int taxonIndex, int patternIndex) {
+			int k = taxonIndex * patternCount + patternIndex;
+			return states != null ? states[k] : wideStates[k];
+		}
+
+		void set(int taxonIndex, int patternIndex, int code) {
+			int k = taxonIndex * patternCount + patternIndex;
+			if (states != null) {
+				states[k] = (byte) code;
+			} else {
+				wideStates[k] = (short) code;
+			}
+		}
+
+		/** copy states of a taxon into target, starting at offset **/
+		public void getStates(int taxonIndex, int [] target, int offset) {
+			int k = taxonIndex * patternCount;
+			if (states != null) {
+				for (int i = 0; i < patternCount; i++) {
+					target[offset + i] = states[k + i];
+				}
+			} else {
+				for (int i = 0; i < patternCount; i++) {
+					target[offset + i] = wideStates[k + i];
+				}
+			}
+		}
+
+		/** pattern index of site, where sites are patterns repeated by their weights **/
+		public int getPatternIndex(int site) {
+			for (int i = 0; i < patternCount; i++) {
+				site -= weights[i];
+				if (site < 0) {
+					return i;
+				}
+			}
+			throw new IllegalArgumentException("site index out of range");
+		}
+	}
+}
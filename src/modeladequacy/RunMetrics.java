@@ -0,0 +1,178 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Loggable;
+import beast.evolution.likelihood.MATreeLikelihood;
+
+@Description("Wall time and allocated memory per phase of a model adequacy run, and counters such as alignment switches of the tree likelihoods. "
+		+ "Can be added to a logger to log the counters while the MCMC runs")
+public class RunMetrics extends BEASTObject implements Loggable {
+
+	static class Phase {
+		final String name;
+		long nanos;
+		// bytes allocated by threads alive at the end of the phase, or -1 if the JVM does not report allocation
+		long bytes;
+
+		Phase(String name) {
+			this.name = name;
+		}
+	}
+
+	final List<Phase> phases = new ArrayList<>();
+	final Map<String, Long> counters = new LinkedHashMap<>();
+	// tree likelihoods to collect switch and reset counts from
+	final List<MATreeLikelihood> likelihoods = new ArrayList<>();
+
+	private Phase current;
+	private long phaseStart;
+	private Map<Long, Long> allocatedAtStart;
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	/** start timing a phase, ending the current one if any **/
+	public synchronized void begin(String name) {
+		end();
+		current = new Phase(name);
+		allocatedAtStart = allocatedBytes();
+		phaseStart = System.nanoTime();
+	}
+
+	public synchronized void end() {
+		if (current == null) {
+			return;
+		}
+		current.nanos = System.nanoTime() - phaseStart;
+		Map<Long, Long> allocated = allocatedBytes();
+		if (allocated == null) {
+			current.bytes = -1;
+		} else {
+			for (Map.Entry<Long, Long> e : allocated.entrySet()) {
+				Long start = allocatedAtStart.get(e.getKey());
+				current.bytes += e.getValue() - (start != null ? start : 0);
+			}
+		}
+		phases.add(current);
+		current = null;
+	}
+
+	public synchronized void count(String name, long delta) {
+		counters.put(name, counters.getOrDefault(name, 0L) + delta);
+	}
+
+	/** allocated bytes by thread ID for all live threads, or null if not supported **/
+	private static Map<Long, Long> allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+			return null;
+		}
+		long [] ids = bean.getAllThreadIds();
+		long [] bytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids);
+		Map<Long, Long> allocated = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			if (bytes[i] >= 0) {
+				allocated.put(ids[i], bytes[i]);
+			}
+		}
+		return allocated;
+	}
+
+	long getSwapCount() {
+		long count = 0;
+		for (MATreeLikelihood likelihood : likelihoods) {
+			count += likelihood.getSwapCount();
+		}
+		return count;
+	}
+
+	long getRestoreResetCount() {
+		long count = 0;
+		for (MATreeLikelihood likelihood : likelihoods) {
+			count += likelihood.getRestoreResetCount();
+		}
+		return count;
+	}
+
+	/** counters, including those of the tree likelihoods and the simulation rate **/
+	synchronized Map<String, Number> getCounters() {
+		Map<String, Number> all = new LinkedHashMap<>(counters);
+		all.put("alignmentSwaps", getSwapCount());
+		all.put("restoreResets", getRestoreResetCount());
+		long hits = 0, misses = 0;
+		for (MATreeLikelihood likelihood : likelihoods) {
+			hits += likelihood.getCacheHits();
+			misses += likelihood.getCacheMisses();
+		}
+		if (hits + misses > 0) {
+			// shows whether the likelihood cache is worth its memory
+			all.put("likelihoodCacheHits", hits);
+			all.put("likelihoodCacheMisses", misses);
+		}
+		for (Phase phase : phases) {
+			if (phase.name.equals("simulate") && counters.containsKey("replicates") && phase.nanos > 0) {
+				all.put("replicatesPerSecond", counters.get("replicates") * 1e9 / phase.nanos);
+			}
+		}
+		return all;
+	}
+
+	/** write report as CSV if the file name ends in .csv, and as JSON otherwise **/
+	public synchronized void write(File file) throws IOException {
+		end();
+		PrintStream out = new PrintStream(file);
+		if (file.getName().toLowerCase().endsWith(".csv")) {
+			out.println("type,name,seconds,allocatedBytes,value");
+			for (Phase phase : phases) {
+				out.println("phase," + phase.name + "," + phase.nanos / 1e9 + "," + phase.bytes + ",");
+			}
+			for (Map.Entry<String, Number> e : getCounters().entrySet()) {
+				out.println("counter," + e.getKey() + ",,," + e.getValue());
+			}
+		} else {
+			out.println("{");
+			out.println("  \"phases\": [");
+			for (int i = 0; i < phases.size(); i++) {
+				Phase phase = phases.get(i);
+				out.println("    {\"name\": \"" + phase.name + "\", \"seconds\": " + phase.nanos / 1e9 + ", \"allocatedBytes\": " + phase.bytes + "}" +
+						(i < phases.size() - 1 ? "," : ""));
+			}
+			out.println("  ],");
+			out.println("  \"counters\": {");
+			int i = 0;
+			Map<String, Number> all = getCounters();
+			for (Map.Entry<String, Number> e : all.entrySet()) {
+				out.println("    \"" + e.getKey() + "\": " + e.getValue() + (++i < all.size() ? "," : ""));
+			}
+			out.println("  }");
+			out.println("}");
+		}
+		out.close();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		out.print("alignmentSwaps\trestoreResets\t");
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		out.print(getSwapCount() + "\t" + getRestoreResetCount() + "\t");
+	}
+
+	@Override
+	public void close(PrintStream out) {
+	}
+}
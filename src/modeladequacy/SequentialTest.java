@@ -0,0 +1,68 @@
+package modeladequacy;
+
+import java.util.List;
+
+/**
+ * Sequential posterior predictive test: after every batch of replicates, a
+ * Hoeffding confidence interval is put around the two-sided p-value of every
+ * statistic. The test is settled once each interval lies entirely above or
+ * entirely below alpha. Since the intervals are checked repeatedly, the k-th
+ * check only spends delta/(k(k+1)) of the error probability delta, which sums
+ * to delta over all checks. So the adequate/inadequate decision for every
+ * statistic is wrong with probability at most tolerance (using a union bound
+ * over the statistics and checks), however many batches it takes.
+ */
+class SequentialTest {
+	final List<ReplicateStatistics.Summary> summaries;
+	final double alpha;
+	final double tolerance;
+	// number of checks done so far
+	int checks;
+
+	SequentialTest(List<ReplicateStatistics.Summary> summaries, double alpha, double tolerance) {
+		this.summaries = summaries;
+		this.alpha = alpha;
+		this.tolerance = tolerance;
+	}
+
+	/** half width of the confidence interval at check k (counting from 1) of a tail fraction estimated from n replicates **/
+	double epsilon(int n, int k) {
+		// each statistic has two tails, each of which gets its share of the tolerance
+		double delta = tolerance / (2 * summaries.size());
+		double deltaK = delta / ((double) k * (k + 1));
+		return Math.sqrt(Math.log(2 / deltaK) / (2 * n));
+	}
+
+	boolean isSettled(ReplicateStatistics.Summary summary, int k) {
+		int n = summary.values.size();
+		if (n == 0) {
+			return false;
+		}
+		double tail = Math.min(summary.lowerP(), summary.upperP());
+		double epsilon = epsilon(n, k);
+		return 2 * (tail + epsilon) < alpha || 2 * (tail - epsilon) > alpha;
+	}
+
+	/** do the next check, to be called once after every batch **/
+	boolean check() {
+		checks++;
+		for (ReplicateStatistics.Summary summary : summaries) {
+			if (!isSettled(summary, checks)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	String report() {
+		StringBuilder buf = new StringBuilder();
+		int n = summaries.isEmpty() ? 0 : summaries.get(0).values.size();
+		int k = Math.max(checks, 1);
+		buf.append(n + " replicates, p-value bounds +/- " + String.format("%.3f", 2 * epsilon(Math.max(n, 1), k)) + ":");
+		for (ReplicateStatistics.Summary summary : summaries) {
+			double p = Math.min(1.0, 2 * Math.min(summary.lowerP(), summary.upperP()));
+			buf.append(" " + summary.partition + "." + summary.statistic + "=" + String.format("%.3f", p) + (isSettled(summary, k) ? "" : "?"));
+		}
+		return buf.toString();
+	}
+}
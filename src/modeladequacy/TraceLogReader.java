@@ -0,0 +1,103 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads entries of a trace log on demand, instead of loading all columns into
+ * memory like LogAnalyser. The log is scanned once for the offsets of its
+ * entries, after which any entry can be read directly. Only columns marked
+ * as required are parsed.
+ */
+class TraceLogReader {
+	final File file;
+	final int burnInPercentage;
+	List<String> labels;
+	long [] offsets;
+	boolean [] required;
+
+	FileChannel channel;
+
+	TraceLogReader(File file, int burnInPercentage) throws IOException {
+		this.file = file;
+		this.burnInPercentage = burnInPercentage;
+		scan();
+		required = new boolean[labels.size()];
+		channel = LogFileIndex.open(file);
+	}
+
+	/** index header and entries in the log **/
+	private void scan() throws IOException {
+		LogFileIndex.Offsets rows = new LogFileIndex.Offsets();
+		long [] header = new long[]{-1};
+		LogFileIndex.scan(file, (offset, prefix) -> {
+			if (isComment(prefix)) {
+				return;
+			}
+			if (header[0] < 0) {
+				header[0] = offset;
+			} else {
+				rows.add(offset);
+			}
+		});
+		if (header[0] < 0) {
+			throw new IOException("No header found in trace log " + file.getPath());
+		}
+		FileChannel channel = LogFileIndex.open(file);
+		labels = new ArrayList<>(Arrays.asList(LogFileIndex.readLine(channel, header[0]).trim().split("\t")));
+		channel.close();
+		int burnIn = rows.size * burnInPercentage / 100;
+		offsets = rows.toArray(burnIn);
+	}
+
+	private boolean isComment(String str) {
+		return str.startsWith("#") || str.trim().length() == 0;
+	}
+
+	List<String> getLabels() {
+		return labels;
+	}
+
+	/** index of the column with given label, or -1 if there is no such column **/
+	int indexof(String label) {
+		return labels.indexOf(label);
+	}
+
+	/** number of entries after burn-in **/
+	int getSampleCount() {
+		return offsets.length;
+	}
+
+	/** mark column as one to be parsed by read() **/
+	void require(int column) {
+		required[column] = true;
+	}
+
+	/** parse required columns of entry sample (counting from the end of burn-in) into values, other columns are left untouched.
+	 * Safe to call from several threads. **/
+	void read(int sample, double [] values) throws IOException {
+		String str = LogFileIndex.readLine(channel, offsets[sample]);
+		int column = 0;
+		int start = 0;
+		int n = str.length();
+		while (start <= n && column < required.length) {
+			int end = str.indexOf('\t', start);
+			if (end < 0) {
+				end = n;
+			}
+			if (required[column]) {
+				values[column] = Double.parseDouble(str.substring(start, end).trim());
+			}
+			column++;
+			start = end + 1;
+		}
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
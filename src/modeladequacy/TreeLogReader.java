@@ -0,0 +1,121 @@
+package modeladequacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+/**
+ * Reads trees of a NEXUS tree log on demand. The file is scanned once for
+ * the translate block and the offsets of the trees, after which any tree
+ * can be read directly without parsing the trees before it.
+ */
+class TreeLogReader {
+	final File file;
+	final int burnInPercentage;
+	List<String> taxa;
+	long [] offsets;
+
+	FileChannel channel;
+
+	TreeLogReader(File file, int burnInPercentage) throws IOException {
+		this.file = file;
+		this.burnInPercentage = burnInPercentage;
+		channel = LogFileIndex.open(file);
+		scan();
+	}
+
+	/** index translate block and trees in the file **/
+	private void scan() throws IOException {
+		LogFileIndex.Offsets trees = new LogFileIndex.Offsets();
+		LogFileIndex.Offsets translate = new LogFileIndex.Offsets();
+		boolean [] inTranslate = new boolean[1];
+		LogFileIndex.scan(file, (offset, prefix) -> {
+			String str = prefix.trim().toLowerCase();
+			if (str.startsWith("tree ")) {
+				trees.add(offset);
+				inTranslate[0] = false;
+			} else if (str.startsWith("translate")) {
+				inTranslate[0] = true;
+			} else if (inTranslate[0]) {
+				translate.add(offset);
+			}
+		});
+		if (trees.size == 0) {
+			throw new IOException("No trees found in tree log " + file.getPath());
+		}
+		int burnIn = trees.size * burnInPercentage / 100;
+		offsets = trees.toArray(burnIn);
+
+		if (translate.size > 0) {
+			parseTranslateBlock(translate);
+		}
+	}
+
+	private void parseTranslateBlock(LogFileIndex.Offsets translate) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<Integer> numbers = new ArrayList<>();
+		int max = 0;
+		for (int i = 0; i < translate.size; i++) {
+			String str = LogFileIndex.readLine(channel, translate.offsets[i]).trim();
+			boolean done = str.endsWith(";");
+			for (String entry : str.split(",")) {
+				entry = entry.replace(";", "").trim();
+				if (entry.length() > 0) {
+					int space = entry.indexOf(' ');
+					if (space < 0) {
+						space = entry.indexOf('\t');
+					}
+					int nr = Integer.parseInt(entry.substring(0, space));
+					String name = entry.substring(space + 1).trim();
+					if (name.length() > 1 && (name.charAt(0) == '\'' || name.charAt(0) == '"')) {
+						name = name.substring(1, name.length() - 1);
+					}
+					numbers.add(nr);
+					names.add(name);
+					max = Math.max(max, nr);
+				}
+			}
+			if (done) {
+				break;
+			}
+		}
+		String [] taxa = new String[max];
+		for (int i = 0; i < numbers.size(); i++) {
+			taxa[numbers.get(i) - 1] = names.get(i);
+		}
+		this.taxa = new ArrayList<>();
+		for (String taxon : taxa) {
+			this.taxa.add(taxon);
+		}
+	}
+
+	/** number of trees after burn-in **/
+	int getSampleCount() {
+		return offsets.length;
+	}
+
+	/** parse tree sample (counting from the end of burn-in). Safe to call from several threads. **/
+	Tree read(int sample) throws IOException {
+		return new TreeParser(taxa, readNewick(sample), 1, false);
+	}
+
+	/** Newick string of tree sample, without parsing it **/
+	String readNewick(int sample) throws IOException {
+		String str = LogFileIndex.readLine(channel, offsets[sample]);
+		return str.substring(str.indexOf('('));
+	}
+
+	/** taxon names by translate block number minus one, or null if the log has no translate block **/
+	List<String> getTaxa() {
+		return taxa;
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,256 @@
+package modeladequacy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Parses Newick trees from a tree log straight into arrays indexed by node
+ * number, and assigns them to the nodes of an existing tree, instead of
+ * building a new Tree for every log entry. Leaves are matched to the tree by
+ * taxon name, internal nodes are numbered in post-order as TreeParser does.
+ * Branch lengths can be scaled by the "rate" annotation of a node, which is
+ * what the generator needs for simulating under relaxed clocks.
+ * Not thread safe: every tree gets its own scanner.
+ */
+class TreeScanner {
+	final Tree tree;
+	final int nodeCount;
+	final int leafCount;
+	// leaf node number by translate block number (1-based), or null if trees have taxon names as labels
+	private int [] leafByNumber;
+	private Map<String, Integer> leafByName;
+
+	// by node number
+	final int [] parent;
+	final double [] length;
+	final double [] rate;
+	final double [] height;
+	// node numbers in the order nodes are completed, i.e. post-order
+	final int [] order;
+	// open clades, and node number they get once closed
+	private final int [] stack;
+	private final int [] slotNr;
+	private final int [] parentSlot;
+	private final boolean [] seen;
+
+	private String str;
+	private int pos;
+
+	TreeScanner(Tree tree, List<String> translateTaxa) {
+		this.tree = tree;
+		nodeCount = tree.getNodeCount();
+		leafCount = tree.getLeafNodeCount();
+		leafByName = new HashMap<>();
+		for (int i = 0; i < leafCount; i++) {
+			leafByName.put(tree.getNode(i).getID(), i);
+		}
+		if (translateTaxa != null) {
+			leafByNumber = new int[translateTaxa.size() + 1];
+			for (int i = 0; i < translateTaxa.size(); i++) {
+				Integer nr = leafByName.get(translateTaxa.get(i));
+				leafByNumber[i + 1] = nr != null ? nr : -1;
+			}
+		}
+		parent = new int[nodeCount];
+		length = new double[nodeCount];
+		rate = new double[nodeCount];
+		height = new double[nodeCount];
+		order = new int[nodeCount];
+		stack = new int[nodeCount];
+		slotNr = new int[nodeCount];
+		parentSlot = new int[nodeCount];
+		seen = new boolean[nodeCount];
+	}
+
+	/**
+	 * parse newick into the arrays, with heights from branch lengths multiplied by rates if scaleByRate is set.
+	 * @return false if the tree does not match the tree of this scanner (e.g. unknown taxa, or not binary)
+	 */
+	boolean scan(String newick, boolean scaleByRate) {
+		str = newick;
+		pos = 0;
+		int depth = 0, slots = 0, completed = 0, leaves = 0;
+		int nextInternal = leafCount;
+		Arrays.fill(seen, false);
+		int n = str.length();
+		while (pos < n) {
+			char c = str.charAt(pos);
+			if (c == '(') {
+				if (slots == nodeCount) {
+					return false;
+				}
+				stack[depth++] = slots++;
+				pos++;
+			} else if (c == ',' || Character.isWhitespace(c)) {
+				pos++;
+			} else if (c == ';') {
+				break;
+			} else {
+				int nr;
+				if (c == ')') {
+					if (depth == 0 || nextInternal == nodeCount) {
+						return false;
+					}
+					pos++;
+					nr = nextInternal++;
+					slotNr[stack[--depth]] = nr;
+					// internal node labels are not used
+					label();
+				} else {
+					nr = leaf(label());
+					if (nr < 0 || seen[nr]) {
+						return false;
+					}
+					leaves++;
+				}
+				if (completed == nodeCount) {
+					return false;
+				}
+				seen[nr] = true;
+				parentSlot[nr] = depth > 0 ? stack[depth - 1] : -1;
+				order[completed++] = nr;
+				rate[nr] = 1;
+				length[nr] = 0;
+				if (!suffix(nr)) {
+					return false;
+				}
+			}
+		}
+		if (depth != 0 || leaves != leafCount || completed != nodeCount) {
+			return false;
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			parent[i] = parentSlot[i] < 0 ? -1 : slotNr[parentSlot[i]];
+		}
+
+		// as TreeParser: the root is as high as the longest path to a leaf, then heights go down by (scaled) branch lengths
+		int root = order[nodeCount - 1];
+		double [] depths = height;
+		depths[root] = 0;
+		double rootHeight = 0;
+		for (int i = nodeCount - 2; i >= 0; i--) {
+			int nr = order[i];
+			depths[nr] = depths[parent[nr]] + length[nr];
+			if (nr < leafCount && depths[nr] > rootHeight) {
+				rootHeight = depths[nr];
+			}
+		}
+		height[root] = rootHeight;
+		for (int i = nodeCount - 2; i >= 0; i--) {
+			int nr = order[i];
+			height[nr] = height[parent[nr]] - length[nr] * (scaleByRate ? rate[nr] : 1);
+		}
+		return true;
+	}
+
+	/** set topology and heights of the tree to the last scanned tree **/
+	void assign() {
+		Node [] nodes = tree.getNodesAsArray();
+		for (Node node : nodes) {
+			node.removeAllChildren(false);
+		}
+		// post-order, so children are added left to right
+		for (int i = 0; i < nodeCount - 1; i++) {
+			int nr = order[i];
+			nodes[parent[nr]].addChild(nodes[nr]);
+		}
+		Node root = nodes[order[nodeCount - 1]];
+		root.setParent(null);
+		tree.setRoot(root);
+		for (int i = 0; i < nodeCount; i++) {
+			nodes[i].setHeight(height[i]);
+		}
+	}
+
+	private int leaf(String label) {
+		if (leafByNumber != null) {
+			try {
+				int number = Integer.parseInt(label);
+				return number > 0 && number < leafByNumber.length ? leafByNumber[number] : -1;
+			} catch (NumberFormatException e) {
+				// fall through to names
+			}
+		}
+		Integer nr = leafByName.get(label);
+		return nr != null ? nr : -1;
+	}
+
+	/** label at pos, possibly quoted, or empty string if there is none **/
+	private String label() {
+		int n = str.length();
+		if (pos < n && (str.charAt(pos) == '\'' || str.charAt(pos) == '"')) {
+			char quote = str.charAt(pos);
+			int end = str.indexOf(quote, pos + 1);
+			if (end < 0) {
+				end = n;
+			}
+			String label = str.substring(pos + 1, end);
+			pos = Math.min(end + 1, n);
+			return label;
+		}
+		int start = pos;
+		while (pos < n && ":[,);".indexOf(str.charAt(pos)) < 0 && !Character.isWhitespace(str.charAt(pos))) {
+			pos++;
+		}
+		return str.substring(start, pos);
+	}
+
+	/** metadata and branch length following a node, in either order **/
+	private boolean suffix(int nr) {
+		int n = str.length();
+		while (pos < n) {
+			char c = str.charAt(pos);
+			if (c == '[') {
+				int end = str.indexOf(']', pos);
+				if (end < 0) {
+					return false;
+				}
+				metaData(nr, pos + 1, end);
+				pos = end + 1;
+			} else if (c == ':') {
+				int start = ++pos;
+				while (pos < n && ",)[;".indexOf(str.charAt(pos)) < 0 && !Character.isWhitespace(str.charAt(pos))) {
+					pos++;
+				}
+				try {
+					length[nr] = Double.parseDouble(str.substring(start, pos));
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			} else {
+				return true;
+			}
+		}
+		return true;
+	}
+
+	/** pick up rate=value from a [&key=value,...] block. As with TreeParser metadata, an integer rate of 0 counts as 1 **/
+	private void metaData(int nr, int start, int end) {
+		int i = str.indexOf("rate=", start);
+		while (i >= 0 && i < end) {
+			char before = str.charAt(i - 1);
+			if (before == '&' || before == ',' || before == '[') {
+				int valueStart = i + 5;
+				int valueEnd = valueStart;
+				while (valueEnd < end && str.charAt(valueEnd) != ',') {
+					valueEnd++;
+				}
+				String value = str.substring(valueStart, valueEnd);
+				try {
+					double r = Double.parseDouble(value);
+					boolean integer = value.indexOf('.') < 0 && value.indexOf('e') < 0 && value.indexOf('E') < 0;
+					rate[nr] = integer && r == 0 ? 1 : r;
+				} catch (NumberFormatException e) {
+					// not a number, so not a rate
+				}
+				return;
+			}
+			i = str.indexOf("rate=", i + 1);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package beast.evolution.likelihood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import modeladequacy.AlignmentList;
+import modeladequacy.ReplicateStore;
+import modeladequacy.TestData;
+
+public class MATreeLikelihoodTest {
+	final static int TAXON_COUNT = 6;
+	final static int SITE_COUNT = 60;
+	final static int REPLICATE_COUNT = 5;
+
+	Alignment [] alignments;
+	Tree tree;
+	SiteModel siteModel;
+	IntegerParameter indicator;
+	State state;
+	MATreeLikelihood likelihood;
+	// likelihood of every alignment on its own
+	double [] expected;
+
+	/** set up replicates with different pattern counts, some with gaps and ambiguities, and a likelihood over them **/
+	MATreeLikelihood setUp(Object... args) {
+		Random random = new Random(127);
+		char [] base = new char[SITE_COUNT];
+		for (int k = 0; k < SITE_COUNT; k++) {
+			base[k] = "ACGT".charAt(random.nextInt(4));
+		}
+		alignments = new Alignment[REPLICATE_COUNT];
+		for (int r = 0; r < REPLICATE_COUNT; r++) {
+			String [] sequences = new String[TAXON_COUNT];
+			for (int j = 0; j < TAXON_COUNT; j++) {
+				char [] seq = base.clone();
+				for (int k = 0; k < SITE_COUNT; k++) {
+					if (random.nextDouble() < 0.1 * r) {
+						seq[k] = "ACGTN-".charAt(random.nextInt(r == 3 ? 6 : 4));
+					}
+				}
+				sequences[j] = new String(seq);
+			}
+			alignments[r] = TestData.alignment(sequences);
+		}
+		ReplicateStore store = TestData.store(alignments);
+
+		tree = new TreeParser(TestData.taxa(TAXON_COUNT), TestData.newick(TAXON_COUNT, random), 1, false);
+		JukesCantor jc = new JukesCantor();
+		jc.initAndValidate();
+		siteModel = new SiteModel();
+		siteModel.initByName("substModel", jc, "gammaCategoryCount", 4, "shape", new RealParameter("0.5"));
+
+		indicator = new IntegerParameter();
+		indicator.initByName("value", 0, "upper", REPLICATE_COUNT - 1, "lower", 0);
+		AlignmentList data = new AlignmentList(store);
+		data.initByName("indicator", indicator);
+
+		likelihood = new MATreeLikelihood();
+		Object [] inputs = new Object[]{"data", data, "tree", tree, "siteModel", siteModel};
+		Object [] all = new Object[inputs.length + args.length];
+		System.arraycopy(inputs, 0, all, 0, inputs.length);
+		System.arraycopy(args, 0, all, inputs.length, args.length);
+		likelihood.initByName(all);
+		likelihood.setID("treeLikelihood");
+
+		state = new State();
+		state.stateNodeInput.get().add(indicator);
+		state.initialise();
+		state.setPosterior(likelihood);
+
+		expected = new double[REPLICATE_COUNT];
+		for (int r = 0; r < REPLICATE_COUNT; r++) {
+			TreeLikelihood single = new TreeLikelihood();
+			single.initByName("data", alignments[r], "tree", tree, "siteModel", siteModel);
+			expected[r] = single.calculateLogP();
+		}
+		state.robustlyCalcPosterior(likelihood);
+		return likelihood;
+	}
+
+	/** MCMC step proposing alignment as the current one **/
+	double propose(int alignment, boolean accept) {
+		state.store(0);
+		indicator.setValue(alignment);
+		return step(accept);
+	}
+
+	/** MCMC step with a new tree, but the same alignment **/
+	double proposeTree(boolean accept) {
+		state.store(0);
+		tree.setEverythingDirty(true);
+		double logP = step(accept);
+		tree.setEverythingDirty(false);
+		return logP;
+	}
+
+	private double step(boolean accept) {
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double logP = likelihood.calculateLogP();
+		if (accept) {
+			state.acceptCalculationNodes();
+		} else {
+			state.restore();
+			state.restoreCalculationNodes();
+		}
+		state.setEverythingDirty(false);
+		return logP;
+	}
+
+	@Test
+	public void testLikelihoodOfEveryAlignment() {
+		setUp();
+		assertEquals(expected[0], likelihood.getCurrentLogP(), 1e-10);
+		for (int r : new int[]{1, 4, 2, 2, 0, 3, 1}) {
+			assertEquals(expected[r], propose(r, true), 1e-10);
+			assertEquals(expected[r], proposeTree(true), 1e-10);
+		}
+	}
+
+	@Test
+	public void testRejectedSwap() {
+		setUp();
+		propose(2, true);
+		long swaps = likelihood.getSwapCount();
+		assertEquals(expected[4], propose(4, false), 1e-10);
+		assertEquals(expected[2], likelihood.getCurrentLogP(), 1e-10);
+		// the restored alignment is the one used by the next calculation
+		assertEquals(expected[2], proposeTree(true), 1e-10);
+		// and the rejected one is still loaded correctly when proposed again
+		assertEquals(expected[4], propose(4, false), 1e-10);
+		assertEquals(expected[4], propose(4, true), 1e-10);
+		assertEquals(expected[4], proposeTree(true), 1e-10);
+		assertEquals(swaps + 3, likelihood.getSwapCount());
+		assertEquals(2, likelihood.getRestoreResetCount());
+	}
+
+	@Test
+	public void testRandomWalk() {
+		setUp();
+		Random random = new Random(128);
+		int current = 0;
+		for (int i = 0; i < 200; i++) {
+			boolean accept = random.nextBoolean();
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected[current], proposeTree(accept), 1e-10);
+			} else {
+				int proposed = random.nextInt(REPLICATE_COUNT);
+				assertEquals(expected[proposed], propose(proposed, accept), 1e-10);
+				if (accept) {
+					current = proposed;
+				}
+			}
+			assertEquals(expected[current], likelihood.getCurrentLogP(), 1e-10);
+		}
+	}
+
+	/** log likelihood from the pattern likelihoods, which a cache hit copies in when partials are cached **/
+	double patternLogP() {
+		Alignment data = likelihood.dataInput.get();
+		double logP = 0;
+		for (int i = 0; i < data.getPatternCount(); i++) {
+			logP += likelihood.patternLogLikelihoods[i] * data.getPatternWeight(i);
+		}
+		return logP;
+	}
+
+	@Test
+	public void testCacheHits() {
+		setUp("cacheSize", 1);
+		assertTrue(likelihood.cachePartials);
+		long hits = likelihood.getCacheHits();
+		long misses = likelihood.getCacheMisses();
+		propose(1, true);
+		propose(2, true);
+		assertEquals(expected[1], propose(1, true), 1e-10);
+		assertEquals(expected[1], patternLogP(), 1e-10);
+		// likelihood of a rejected alignment is cached too, since tree and parameters did not change
+		assertEquals(expected[3], propose(3, false), 1e-10);
+		assertEquals(expected[3], propose(3, true), 1e-10);
+		assertEquals(expected[3], patternLogP(), 1e-10);
+		assertEquals(hits + 2, likelihood.getCacheHits());
+		assertEquals(misses + 3, likelihood.getCacheMisses());
+
+		// a rejected tree leaves the cache alone
+		proposeTree(false);
+		assertEquals(expected[1], propose(1, true), 1e-10);
+		assertEquals(hits + 3, likelihood.getCacheHits());
+
+		// an accepted one empties it
+		proposeTree(true);
+		assertEquals(expected[3], propose(3, true), 1e-10);
+		assertEquals(expected[1], propose(1, true), 1e-10);
+		assertEquals(hits + 4, likelihood.getCacheHits());
+		assertEquals(misses + 6, likelihood.getCacheMisses());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedAreEvicted() {
+		setUp("cacheSize", 1);
+		// room for two likelihoods without partials
+		likelihood.cachePartials = false;
+		likelihood.cacheCapacity = 2 * new MATreeLikelihood.CacheEntry(0, null, null).size();
+		likelihood.cache.clear();
+		likelihood.cacheBytes = 0;
+		long hits = likelihood.getCacheHits();
+		long misses = likelihood.getCacheMisses();
+		for (int r : new int[]{1, 2, 1, 3, 1, 2}) {
+			assertEquals(expected[r], propose(r, true), 1e-10);
+		}
+		// 3 pushed out 2, and 2 pushed out 3 again
+		assertEquals(2, likelihood.cache.size());
+		assertTrue(likelihood.cache.containsKey(1));
+		assertTrue(likelihood.cache.containsKey(2));
+		assertEquals(hits + 2, likelihood.getCacheHits());
+		assertEquals(misses + 4, likelihood.getCacheMisses());
+	}
+
+	@Test
+	public void testLogAlignments() {
+		setUp("logAlignments", -1);
+		propose(2, true);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		likelihood.init(new PrintStream(header));
+		String [] labels = header.toString().split("\t");
+		assertEquals(REPLICATE_COUNT + 1, labels.length);
+		assertEquals("treeLikelihood", labels[0]);
+		for (int r = 0; r < REPLICATE_COUNT; r++) {
+			assertEquals("treeLikelihood.alignment" + r, labels[r + 1]);
+		}
+
+		ByteArrayOutputStream row = new ByteArrayOutputStream();
+		likelihood.log(0, new PrintStream(row));
+		String [] values = row.toString().split("\t");
+		assertEquals(expected[2], Double.parseDouble(values[0]), 1e-10);
+		for (int r = 0; r < REPLICATE_COUNT; r++) {
+			assertEquals(expected[r], Double.parseDouble(values[r + 1]), 1e-10);
+		}
+		// logging leaves the likelihood the chain runs on alone
+		assertEquals(expected[2], likelihood.getCurrentLogP(), 1e-10);
+		assertEquals(expected[2], proposeTree(true), 1e-10);
+	}
+
+	@Test
+	public void testLogFirstAlignments() {
+		setUp("logAlignments", 2);
+		ByteArrayOutputStream row = new ByteArrayOutputStream();
+		likelihood.log(0, new PrintStream(row));
+		String [] values = row.toString().split("\t");
+		assertEquals(3, values.length);
+		assertEquals(expected[0], Double.parseDouble(values[1]), 1e-10);
+		assertEquals(expected[1], Double.parseDouble(values[2]), 1e-10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLogAlignmentsWithAmbiguities() {
+		setUp("logAlignments", -1, "useAmbiguities", true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLogAlignmentsWithoutAlignmentList() {
+		setUp();
+		MATreeLikelihood other = new MATreeLikelihood();
+		other.initByName("data", alignments[0], "tree", tree, "siteModel", siteModel, "logAlignments", 1);
+	}
+}
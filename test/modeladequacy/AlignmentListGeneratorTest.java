@@ -0,0 +1,95 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AlignmentListGeneratorTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	TraceLogReader traceLog(int entryCount) throws IOException {
+		File file = folder.newFile();
+		PrintStream out = new PrintStream(file);
+		out.println("Sample\tposterior");
+		for (int i = 0; i < entryCount; i++) {
+			out.println(i + "\t" + (-i));
+		}
+		out.close();
+		return new TraceLogReader(file, 0);
+	}
+
+	TreeLogReader treeLog(int treeCount) throws IOException {
+		File file = folder.newFile();
+		PrintStream out = new PrintStream(file);
+		out.println("#NEXUS");
+		out.println("Begin trees;");
+		for (int i = 0; i < treeCount; i++) {
+			out.println("tree STATE_" + i + " = (t0:1,t1:1);");
+		}
+		out.println("End;");
+		out.close();
+		return new TreeLogReader(file, 0);
+	}
+
+	/** generator with only the settings selectSamples() uses **/
+	AlignmentListGenerator generator(AlignmentListGenerator.Sampling sampling, int alignmentCount, long seed) {
+		AlignmentListGenerator generator = new AlignmentListGenerator();
+		generator.sampling = sampling;
+		generator.alignemntCount = alignmentCount;
+		generator.seed = seed;
+		return generator;
+	}
+
+	@Test
+	public void testFirstAndThinned() throws IOException {
+		TraceLogReader traceLog = traceLog(100);
+		List<TreeLogReader> treeLogs = Collections.singletonList(treeLog(100));
+		assertArrayEquals(new int[]{0, 1, 2, 3}, generator(AlignmentListGenerator.Sampling.first, 4, 1).selectSamples(traceLog, treeLogs));
+		assertArrayEquals(new int[]{0, 25, 50, 75}, generator(AlignmentListGenerator.Sampling.thinned, 4, 1).selectSamples(traceLog, treeLogs));
+		assertArrayEquals(new int[]{0, 33, 66}, generator(AlignmentListGenerator.Sampling.thinned, 3, 1).selectSamples(traceLog, treeLogs));
+	}
+
+	@Test
+	public void testRandomIsSeededSortedAndDistinct() throws IOException {
+		TraceLogReader traceLog = traceLog(100);
+		List<TreeLogReader> treeLogs = Collections.singletonList(treeLog(100));
+		int [] samples = generator(AlignmentListGenerator.Sampling.random, 50, 127).selectSamples(traceLog, treeLogs);
+		assertArrayEquals(samples, generator(AlignmentListGenerator.Sampling.random, 50, 127).selectSamples(traceLog, treeLogs));
+		assertEquals(50, samples.length);
+		for (int i = 1; i < samples.length; i++) {
+			assertTrue(samples[i] > samples[i - 1]);
+		}
+		assertTrue(samples[0] >= 0 && samples[samples.length - 1] < 100);
+		assertTrue(!Arrays.equals(samples, generator(AlignmentListGenerator.Sampling.random, 50, 128).selectSamples(traceLog, treeLogs)));
+
+		// all entries
+		int [] all = generator(AlignmentListGenerator.Sampling.random, 100, 127).selectSamples(traceLog, treeLogs);
+		for (int i = 0; i < all.length; i++) {
+			assertEquals(i, all[i]);
+		}
+	}
+
+	@Test
+	public void testSelectsFromShortestLog() throws IOException {
+		TraceLogReader traceLog = traceLog(100);
+		List<TreeLogReader> treeLogs = Arrays.asList(treeLog(100), treeLog(80));
+		assertArrayEquals(new int[]{0, 20, 40, 60}, generator(AlignmentListGenerator.Sampling.thinned, 4, 1).selectSamples(traceLog, treeLogs));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyAlignments() throws IOException {
+		generator(AlignmentListGenerator.Sampling.first, 11, 1).selectSamples(traceLog(10), Collections.singletonList(treeLog(10)));
+	}
+}
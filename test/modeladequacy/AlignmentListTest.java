@@ -0,0 +1,141 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+
+public class AlignmentListTest {
+	IntegerParameter indicator;
+	State state;
+	AlignmentList list;
+	ReplicateStore store;
+
+	/** list over alignments with 3, 4 and 1 patterns of 4 sites **/
+	@Before
+	public void setUp() {
+		store = TestData.store(TestData.alignment("AAAC", "AAGC", "AATC"),
+				TestData.alignment("ACGT", "ACGT", "ACGA"),
+				TestData.alignment("AAAA", "AAAA", "AAAA"));
+		indicator = new IntegerParameter();
+		indicator.initByName("value", 0, "upper", 2, "lower", 0);
+		list = new AlignmentList(store);
+		list.initByName("indicator", indicator);
+		state = new State();
+		state.stateNodeInput.get().add(indicator);
+		state.initialise();
+	}
+
+	/** start of an MCMC step proposing alignment **/
+	void propose(int alignment) {
+		state.store(0);
+		list.store();
+		indicator.setValue(alignment);
+		assertTrue(list.requiresRecalculation());
+	}
+
+	void accept() {
+		state.setEverythingDirty(false);
+	}
+
+	void reject() {
+		state.restore();
+		list.restore();
+	}
+
+	void assertCurrent(int alignment) {
+		ReplicateStore.Replicate replicate = store.get(alignment);
+		int patternCount = replicate.getPatternCount();
+		assertEquals(alignment, list.getCurrentIndex());
+		assertEquals(4, list.getPatternCount());
+		int sites = 0;
+		for (int k = 0; k < list.getPatternCount(); k++) {
+			int [] pattern = list.getPattern(k);
+			for (int j = 0; j < 3; j++) {
+				// padding is unknown, with zero weight
+				int expected = k < patternCount ? replicate.get(j, k) : list.getMaxStateCount();
+				assertEquals(expected, list.getPattern(j, k));
+				assertEquals(expected, pattern[j]);
+			}
+			assertEquals(k < patternCount ? replicate.getPatternWeight(k) : 0, list.getPatternWeight(k));
+			assertEquals(list.getPatternWeight(k), list.getWeights()[k]);
+			sites += list.getWeights()[k];
+		}
+		assertEquals(4, sites);
+	}
+
+	@Test
+	public void testViewsArePadded() {
+		assertCurrent(0);
+		// from fewer to more patterns and back, so padding has to be written over and restored
+		for (int alignment : new int[]{1, 2, 0, 1, 1, 2}) {
+			propose(alignment);
+			accept();
+			assertCurrent(alignment);
+		}
+	}
+
+	@Test
+	public void testWeightsDoNotFlattenPatterns() {
+		propose(1);
+		accept();
+		AlignmentList.Flattened view = list.views[list.currentView];
+		assertFalse(view.weighted);
+		assertEquals(4, list.getWeights().length);
+		assertEquals(1, list.getPatternWeight(0));
+		assertTrue(view.weighted);
+		assertFalse(view.flattened);
+		assertSame(view, list.getFlattened());
+		assertTrue(view.flattened);
+		assertEquals(1, view.getReplicate());
+		assertEquals(4, view.getPatternCount());
+	}
+
+	@Test
+	public void testRestoreSwapsStoredViewBack() {
+		propose(1);
+		accept();
+		assertCurrent(1);
+		AlignmentList.Flattened stored = list.getFlattened();
+
+		propose(2);
+		assertCurrent(2);
+		AlignmentList.Flattened proposed = list.getFlattened();
+		reject();
+		// the stored view comes back as it was, without flattening it again
+		assertSame(stored, list.getFlattened());
+		assertTrue(stored.flattened);
+		assertCurrent(1);
+
+		// the rejected alignment is still in the spare view, so proposing it again does not rebuild it
+		propose(2);
+		assertSame(proposed, list.getFlattened());
+		assertTrue(proposed.flattened);
+		assertCurrent(2);
+		accept();
+
+		// proposing the stored alignment uses the view holding it instead of overwriting the other
+		propose(1);
+		assertSame(stored, list.getFlattened());
+		assertCurrent(1);
+		reject();
+		assertSame(proposed, list.getFlattened());
+		assertCurrent(2);
+	}
+
+	@Test
+	public void testRestoreWithoutSwap() {
+		propose(1);
+		accept();
+		list.store();
+		list.restore();
+		assertCurrent(1);
+		assertFalse(list.requiresRecalculation());
+	}
+}
@@ -0,0 +1,216 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncReplicateWriterTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static String read(File file, boolean gzip) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (gzip) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte [] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		return out.toString("UTF-8");
+	}
+
+	/** write lines 0..lineCount-1 round robin over files through writer, and the lines each file should get after its header **/
+	static String [] writeLines(AsyncReplicateWriter writer, File [] files, int lineCount) throws IOException {
+		StringBuilder [] expected = new StringBuilder[files.length];
+		for (int i = 0; i < files.length; i++) {
+			expected[i] = new StringBuilder();
+		}
+		for (int i = 0; i < lineCount; i++) {
+			int f = i % files.length;
+			String line = "line " + i + "\n";
+			writer.write(files[f], "header " + f + "\n", line);
+			expected[f].append(line);
+		}
+		String [] result = new String[files.length];
+		for (int i = 0; i < files.length; i++) {
+			result[i] = expected[i].toString();
+		}
+		return result;
+	}
+
+	void testOrder(boolean gzip, int maxOpenFiles) throws IOException {
+		File [] files = new File[5];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new File(folder.getRoot(), "replicate" + i + ".log" + (gzip ? ".gz" : ""));
+		}
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(3, gzip, maxOpenFiles, false, null);
+		String [] expected = writeLines(writer, files, 500);
+		writer.close();
+		for (int i = 0; i < files.length; i++) {
+			assertEquals("header " + i + "\n" + expected[i], read(files[i], gzip));
+		}
+	}
+
+	@Test
+	public void testOrderWithFilesReopened() throws IOException {
+		// every write goes to another file than the one open
+		testOrder(false, 1);
+		testOrder(false, 2);
+		testOrder(false, 10);
+	}
+
+	@Test
+	public void testGzipMembersReadAsOneStream() throws IOException {
+		testOrder(true, 1);
+		testOrder(true, 10);
+	}
+
+	@Test
+	public void testExistingFileIsOverwritten() throws IOException {
+		File file = new File(folder.getRoot(), "replicate0.log");
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(10, false, 1, false, null);
+		writer.write(file, "header\n", "old\n");
+		writer.close();
+		writer = new AsyncReplicateWriter(10, false, 1, false, null);
+		writer.write(file, "header\n", "new\n");
+		writer.close();
+		assertEquals("header\nnew\n", read(file, false));
+	}
+
+	@Test
+	public void testFooterOnClose() throws IOException {
+		File [] files = {new File(folder.getRoot(), "a.trees"), new File(folder.getRoot(), "b.trees")};
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(10, false, 1, false, "End;\n");
+		String [] expected = writeLines(writer, files, 10);
+		writer.close();
+		for (int i = 0; i < files.length; i++) {
+			assertEquals("header " + i + "\n" + expected[i] + "End;\n", read(files[i], false));
+		}
+	}
+
+	@Test
+	public void testWritesWaitForFullQueue() throws Exception {
+		// the writer thread blocks opening a named pipe until it is read from, so the queue fills up
+		File fifo = new File(folder.getRoot(), "fifo");
+		Process mkfifo;
+		try {
+			mkfifo = new ProcessBuilder("mkfifo", fifo.getPath()).start();
+		} catch (IOException e) {
+			mkfifo = null;
+		}
+		Assume.assumeTrue(mkfifo != null && mkfifo.waitFor() == 0);
+
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(1, false, 1, false, null);
+		// taken by the writer thread, and queued
+		writer.write(fifo, null, "first\n");
+		writer.write(fifo, null, "second\n");
+		CountDownLatch written = new CountDownLatch(1);
+		Thread producer = new Thread(() -> {
+			try {
+				writer.write(fifo, null, "third\n");
+				written.countDown();
+			} catch (IOException e) {
+				// leaves the latch at 1
+			}
+		});
+		producer.start();
+		assertFalse(written.await(300, TimeUnit.MILLISECONDS));
+
+		// reading the pipe lets the writer drain the queue
+		String [] content = new String[1];
+		Thread consumer = new Thread(() -> {
+			try {
+				content[0] = read(fifo, false);
+			} catch (IOException e) {
+				content[0] = e.getMessage();
+			}
+		});
+		consumer.start();
+		assertTrue(written.await(10, TimeUnit.SECONDS));
+		writer.close();
+		consumer.join(10000);
+		assertEquals("first\nsecond\nthird\n", content[0]);
+	}
+
+	@Test(timeout = 10000)
+	public void testErrorsReachCaller() throws IOException {
+		File file = new File(folder.getRoot(), "no/such/dir/replicate0.log");
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(1, false, 1, false, null);
+		// the first write fails on the writer thread, and a later one reports it
+		try {
+			while (true) {
+				writer.write(file, "header\n", "text\n");
+			}
+		} catch (IOException e) {
+			// expected
+		}
+		// close reports it too, and does not wait for a writer that stopped, even if a record is left in the full queue
+		try {
+			writer.close();
+			fail("expected an IOException");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	void testResume(boolean gzip) throws IOException {
+		File [] files = {new File(folder.getRoot(), "a.trees" + (gzip ? ".gz" : "")), new File(folder.getRoot(), "b.trees" + (gzip ? ".gz" : ""))};
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(10, gzip, 1, false, "End;\n");
+		String [] first = writeLines(writer, files, 10);
+		writer.close();
+
+		// entries go before the footer, and the header is not repeated
+		writer = new AsyncReplicateWriter(10, gzip, 1, true, "End;\n");
+		String [] second = writeLines(writer, files, 10);
+		writer.close();
+		for (int i = 0; i < files.length; i++) {
+			assertEquals("header " + i + "\n" + first[i] + second[i] + "End;\n", read(files[i], gzip));
+		}
+	}
+
+	@Test
+	public void testResumeStripsFooter() throws IOException {
+		testResume(false);
+	}
+
+	@Test
+	public void testResumeStripsFooterOfGzippedFile() throws IOException {
+		testResume(true);
+	}
+
+	@Test
+	public void testResumeAfterInterruptedRun() throws IOException {
+		// a run that was killed did not get to write the footer
+		File file = new File(folder.getRoot(), "a.trees");
+		AsyncReplicateWriter writer = new AsyncReplicateWriter(10, false, 1, false, null);
+		writer.write(file, "header\n", "line 0\n");
+		writer.close();
+		writer = new AsyncReplicateWriter(10, false, 1, true, "End;\n");
+		writer.write(file, "header\n", "line 1\n");
+		// a new file when resuming gets its header
+		File other = new File(folder.getRoot(), "b.trees");
+		writer.write(other, "header\n", "line 2\n");
+		writer.close();
+		assertEquals("header\nline 0\nline 1\nEnd;\n", read(file, false));
+		assertEquals("header\nline 2\nEnd;\n", read(other, false));
+	}
+}
@@ -0,0 +1,58 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import beast.core.parameter.BooleanParameter;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.Parameter;
+import beast.core.parameter.RealParameter;
+
+public class ParameterBindingTest {
+
+	static void assertAllDirty(Parameter.Base<?> parameter) {
+		assertTrue(parameter.somethingIsDirty());
+		for (int i = 0; i < parameter.getDimension(); i++) {
+			assertTrue(parameter.isDirty(i));
+		}
+	}
+
+	@Test
+	public void testRealValues() {
+		RealParameter parameter = new RealParameter(new Double[]{0.0, 0.0, 0.0});
+		ParameterBinding binding = ParameterBinding.bind(parameter, new int[]{4, 0, 2});
+		assertTrue(binding instanceof ParameterBinding.Bulk);
+		assertFalse(parameter.somethingIsDirty());
+		binding.assign(new double[]{1.5, -1, 2.25, -1, 1e-300});
+		assertArrayEquals(new Double[]{1e-300, 1.5, 2.25}, parameter.getValues());
+		assertAllDirty(parameter);
+
+		// later rows replace all values
+		binding.assign(new double[]{3, -1, 4, -1, 5});
+		assertArrayEquals(new Double[]{5.0, 3.0, 4.0}, parameter.getValues());
+	}
+
+	@Test
+	public void testIntegersAreRounded() {
+		IntegerParameter parameter = new IntegerParameter(new Integer[]{0, 0, 0, 0});
+		ParameterBinding binding = ParameterBinding.bind(parameter, new int[]{0, 1, 2, 3});
+		assertTrue(binding instanceof ParameterBinding.Bulk);
+		// logged integers may have gone through a decimal representation
+		binding.assign(new double[]{2.4, 2.6, -1.5, 6.9999999});
+		assertArrayEquals(new Integer[]{2, 3, -1, 7}, parameter.getValues());
+		assertAllDirty(parameter);
+	}
+
+	@Test
+	public void testBooleansFromNonZero() {
+		BooleanParameter parameter = new BooleanParameter(new Boolean[]{true, true, false, false});
+		ParameterBinding binding = ParameterBinding.bind(parameter, new int[]{3, 2, 1, 0});
+		assertTrue(binding instanceof ParameterBinding.Bulk);
+		binding.assign(new double[]{0.5, -0.0, 1, 0});
+		assertArrayEquals(new Boolean[]{false, true, false, true}, parameter.getValues());
+		assertAllDirty(parameter);
+	}
+}
@@ -0,0 +1,98 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplicateCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static ReplicateStore store() {
+		ReplicateStore store = TestData.store(TestData.alignment("AAAC", "AAGC", "AATC"),
+				TestData.alignment("ACGT", "ACGT", "ACGA"),
+				TestData.alignment("AAAA", "CCCC", "GGGG"));
+		// wide states are stored as shorts
+		ReplicateStore.Replicate wide = new ReplicateStore.Replicate(3, 2, new int[]{3, 1}, true);
+		for (int j = 0; j < 3; j++) {
+			wide.set(j, 0, j);
+			wide.set(j, 1, 15);
+		}
+		store.add(wide);
+		return store;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File file = folder.newFile("replicates.bin");
+		ReplicateStore [] stores = {store(), store().subStore(1, 4)};
+		// every partition needs the same number of replicates
+		stores[0] = stores[0].subStore(0, 3);
+		int [] samples = {7, 11, 13};
+		ReplicateCache.write(file, 42L, samples, stores);
+
+		ReplicateCache.Content content = ReplicateCache.read(file, stores);
+		assertNotNull(content);
+		assertEquals(42L, content.seed);
+		assertArrayEquals(samples, content.samples);
+		assertEquals(2, content.stores.length);
+		TestData.assertSameReplicates(stores[0], content.stores[0]);
+		TestData.assertSameReplicates(stores[1], content.stores[1]);
+
+		ReplicateStore partition = ReplicateCache.readPartition(file, 1, null);
+		assertEquals(stores[1].getTaxaNames(), partition.getTaxaNames());
+		TestData.assertSameReplicates(stores[1], partition);
+	}
+
+	@Test
+	public void testMismatchedHeadersAreRefused() throws IOException {
+		File file = folder.newFile("replicates.bin");
+		ReplicateStore store = store();
+		ReplicateCache.write(file, 42L, new int[store.getReplicateCount()], new ReplicateStore[]{store});
+
+		// different number of partitions
+		assertNull(ReplicateCache.read(file, new ReplicateStore[]{store, store}));
+		// different taxa
+		ReplicateStore other = new ReplicateStore(TestData.alignment("AAAC", "AAGC"));
+		assertNull(ReplicateCache.read(file, new ReplicateStore[]{other}));
+	}
+
+	@Test
+	public void testUnknownFormatIsRefused() throws IOException {
+		File file = folder.newFile("replicates.bin");
+		Files.write(file.toPath(), "not a replicate file, but long enough to hold a header".getBytes());
+		assertNull(ReplicateCache.read(file, new ReplicateStore[]{store()}));
+	}
+
+	@Test
+	public void testKeyDependsOnSettings() throws IOException {
+		File xml = folder.newFile("analysis.xml");
+		Files.write(xml.toPath(), "<beast/>".getBytes());
+		File log = folder.newFile("analysis.log");
+		List<File> logs = Collections.singletonList(log);
+		String key = ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.first, 42, 0, 0.05, 0.01);
+		assertEquals(key, ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.first, 42, 0, 0.05, 0.01));
+		// alpha and tolerance only count when simulating sequentially
+		assertEquals(key, ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.first, 42, 0, 0.1, 0.02));
+		assertNotEquals(key, ReplicateCache.key(xml, logs, 20, 100, AlignmentListGenerator.Sampling.first, 42, 0, 0.05, 0.01));
+		assertNotEquals(key, ReplicateCache.key(xml, logs, 10, 50, AlignmentListGenerator.Sampling.first, 42, 0, 0.05, 0.01));
+		assertNotEquals(key, ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.thinned, 42, 0, 0.05, 0.01));
+		assertNotEquals(key, ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.first, 43, 0, 0.05, 0.01));
+		assertNotEquals(key, ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.first, 42, 10, 0.05, 0.01));
+
+		Files.write(xml.toPath(), "<beast version='2.5'/>".getBytes());
+		assertNotEquals(key, ReplicateCache.key(xml, logs, 10, 100, AlignmentListGenerator.Sampling.first, 42, 0, 0.05, 0.01));
+	}
+}
@@ -0,0 +1,128 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+public class ReplicateSimulatorTest {
+	final static int TAXON_COUNT = 12;
+	final static int SITE_COUNT = 3000;
+	final static long SEED = 127;
+
+	final List<String> taxa = TestData.taxa(TAXON_COUNT);
+	final String newick = TestData.newick(TAXON_COUNT, new Random(SEED));
+	final Alignment data;
+
+	public ReplicateSimulatorTest() {
+		String [] sequences = new String[TAXON_COUNT];
+		char [] seq = new char[SITE_COUNT];
+		Arrays.fill(seq, 'A');
+		Arrays.fill(sequences, new String(seq));
+		data = TestData.alignment(sequences);
+	}
+
+	/** simulator with its own copy of the model, as every worker of the generator has **/
+	ReplicateSimulator simulator() {
+		Tree tree = new TreeParser(taxa, newick, 1, false);
+		JukesCantor jc = new JukesCantor();
+		jc.initAndValidate();
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", jc, "gammaCategoryCount", 4, "shape", new RealParameter("0.5"));
+		return new ReplicateSimulator(tree, siteModel, null, data);
+	}
+
+	ReplicateStore simulate(int replicateCount, int threads) throws Exception {
+		ReplicateStore store = new ReplicateStore(data);
+		ReplicateStore.Replicate [] replicates = new ReplicateStore.Replicate[replicateCount];
+		ThreadLocal<ReplicateSimulator> simulators = ThreadLocal.withInitial(this::simulator);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < replicateCount; i++) {
+				int replicate = i;
+				futures.add(executor.submit(() -> {
+					Random random = new Random(ReplicateSimulator.replicateSeed(SEED, replicate));
+					replicates[replicate] = simulators.get().simulate(random, store);
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (ReplicateStore.Replicate replicate : replicates) {
+			store.add(replicate);
+		}
+		return store;
+	}
+
+	@Test
+	public void testIdenticalAcrossThreadCounts() throws Exception {
+		ReplicateStore expected = simulate(32, 1);
+		for (int threads : new int[]{2, 4, 7}) {
+			TestData.assertSameReplicates(expected, simulate(32, threads));
+		}
+	}
+
+	@Test
+	public void testReplicatesCoverAllSites() throws Exception {
+		ReplicateStore store = simulate(8, 1);
+		for (int i = 0; i < store.getReplicateCount(); i++) {
+			int sites = 0;
+			for (int w : store.get(i).getWeights()) {
+				sites += w;
+			}
+			assertEquals(SITE_COUNT, sites);
+		}
+	}
+
+	@Test
+	public void testPatternsAreDistinct() throws Exception {
+		ReplicateStore store = simulate(8, 1);
+		for (int i = 0; i < store.getReplicateCount(); i++) {
+			ReplicateStore.Replicate replicate = store.get(i);
+			Set<List<Integer>> patterns = new HashSet<>();
+			for (int k = 0; k < replicate.getPatternCount(); k++) {
+				List<Integer> pattern = new ArrayList<>();
+				for (int j = 0; j < TAXON_COUNT; j++) {
+					pattern.add(replicate.get(j, k));
+				}
+				assertTrue(patterns.add(pattern));
+			}
+			// more patterns than the simulator starts out with room for
+			assertTrue(replicate.getPatternCount() > 1024);
+		}
+	}
+
+	@Test
+	public void testReplicateSeedsDiffer() {
+		long [] seeds = new long[1000];
+		for (int i = 0; i < seeds.length; i++) {
+			seeds[i] = ReplicateSimulator.replicateSeed(SEED, i);
+		}
+		Arrays.sort(seeds);
+		for (int i = 1; i < seeds.length; i++) {
+			assertFalse(seeds[i] == seeds[i - 1]);
+		}
+	}
+}
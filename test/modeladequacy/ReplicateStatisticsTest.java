@@ -0,0 +1,88 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import beast.evolution.alignment.Alignment;
+
+public class ReplicateStatisticsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testKnownAlignment() {
+		// patterns AAA (twice), AGT and CCC
+		Alignment data = TestData.alignment("AAAC", "AAGC", "AATC");
+		ReplicateStore store = new ReplicateStore(data);
+		ReplicateStore.Replicate replicate = store.toReplicate(data);
+
+		ReplicateStatistics statistics = new ReplicateStatistics(ReplicateStatistics.defaultStatistics(), 1);
+		double [] values = statistics.calculate(replicate, store.maxStateCount);
+		statistics.shutdown();
+
+		// 2 log(2/4) + 2 log(1/4)
+		assertEquals(6 * Math.log(0.5), values[0], 1e-12);
+		assertEquals(3, values[1], 0);
+		// counts A,C,G,T per taxon (3,1,0,0), (2,1,1,0), (2,1,0,1) against totals (7,3,1,1) of 12
+		assertEquals(30.0 / 7.0, values[2], 1e-12);
+		assertEquals(0.75, values[3], 1e-12);
+	}
+
+	@Test
+	public void testParallelMatchesSequential() {
+		ReplicateStore store = new ReplicateStore(TestData.alignment("AAAC", "AAGC", "AATC"));
+		store.add(TestData.alignment("ACGT", "ACGT", "ACGA"));
+		store.add(TestData.alignment("AAAA", "CCCC", "GGGG"));
+		store.add(TestData.alignment("ACAC", "ACAC", "ACAC"));
+		for (int i = 0; i < 20; i++) {
+			store.add(TestData.alignment("AAAC", "AAGC", "AATC"));
+		}
+
+		ReplicateStatistics statistics = new ReplicateStatistics(ReplicateStatistics.defaultStatistics(), 4);
+		double [][] values = statistics.calculate(store, 0, store.getReplicateCount());
+		for (int i = 0; i < store.getReplicateCount(); i++) {
+			assertArrayEquals(statistics.calculate(store.get(i), store.maxStateCount), values[i], 0);
+		}
+		statistics.shutdown();
+	}
+
+	@Test
+	public void testTailFractions() {
+		ReplicateStatistics.Summary summary = new ReplicateStatistics.Summary("p", "s", 2.0);
+		summary.values.addAll(Arrays.asList(1.0, 2.0, 3.0, 4.0));
+		assertEquals(0.5, summary.lowerP(), 0);
+		assertEquals(0.75, summary.upperP(), 0);
+		assertEquals(2.5, summary.mean(), 1e-12);
+	}
+
+	@Test
+	public void testSaveLoadRoundTrip() throws IOException {
+		List<ReplicateStatistics.Summary> summaries = new ArrayList<>();
+		ReplicateStatistics.Summary summary = new ReplicateStatistics.Summary("partition 1", "multinomial", -1234.5678901234567);
+		summary.values.addAll(Arrays.asList(0.1, -1e-300, 1.0 / 3.0, Double.NEGATIVE_INFINITY));
+		summaries.add(summary);
+		// no replicate values yet
+		summaries.add(new ReplicateStatistics.Summary("partition 2", "chi2", 0.25));
+
+		File file = folder.newFile("statistics.tsv");
+		ReplicateStatistics.save(file, summaries);
+		List<ReplicateStatistics.Summary> loaded = ReplicateStatistics.load(file);
+		assertEquals(summaries.size(), loaded.size());
+		for (int i = 0; i < summaries.size(); i++) {
+			assertEquals(summaries.get(i).partition, loaded.get(i).partition);
+			assertEquals(summaries.get(i).statistic, loaded.get(i).statistic);
+			assertEquals(summaries.get(i).observed, loaded.get(i).observed, 0);
+			assertEquals(summaries.get(i).values, loaded.get(i).values);
+		}
+	}
+}
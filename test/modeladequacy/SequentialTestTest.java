@@ -0,0 +1,57 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SequentialTestTest {
+
+	static ReplicateStatistics.Summary summary(double observed, int below, int above) {
+		ReplicateStatistics.Summary summary = new ReplicateStatistics.Summary("p", "s", observed);
+		for (int i = 0; i < below; i++) {
+			summary.values.add(observed - 1);
+		}
+		for (int i = 0; i < above; i++) {
+			summary.values.add(observed + 1);
+		}
+		return summary;
+	}
+
+	@Test
+	public void testLaterChecksSpendLessError() {
+		SequentialTest test = new SequentialTest(Arrays.asList(summary(0, 0, 100)), 0.05, 0.01);
+		for (int k = 1; k < 100; k++) {
+			assertTrue(test.epsilon(1000, k + 1) > test.epsilon(1000, k));
+		}
+		// more replicates give narrower intervals
+		assertTrue(test.epsilon(10000, 1) < test.epsilon(1000, 1));
+	}
+
+	@Test
+	public void testExtremeStatisticSettles() {
+		// observed value below every replicate: p-value 0
+		SequentialTest test = new SequentialTest(Arrays.asList(summary(0, 0, 10000)), 0.05, 0.01);
+		assertTrue(test.check());
+		// too few replicates to tell
+		test = new SequentialTest(Arrays.asList(summary(0, 0, 100)), 0.05, 0.01);
+		assertFalse(test.check());
+	}
+
+	@Test
+	public void testBorderlineStatisticDoesNotSettle() {
+		// p-value exactly alpha, so no number of replicates settles it
+		SequentialTest test = new SequentialTest(Arrays.asList(summary(0, 250, 9750)), 0.05, 0.01);
+		for (int k = 0; k < 10; k++) {
+			assertFalse(test.check());
+		}
+	}
+
+	@Test
+	public void testAllStatisticsMustSettle() {
+		SequentialTest test = new SequentialTest(Arrays.asList(summary(0, 0, 10000), summary(0, 250, 9750)), 0.05, 0.01);
+		assertFalse(test.check());
+	}
+}
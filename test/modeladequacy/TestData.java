@@ -0,0 +1,82 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+
+/** alignments, taxa and trees shared by the tests **/
+public class TestData {
+
+	/** nucleotide alignment with taxa t0, t1, ... **/
+	public static Alignment alignment(String... sequences) {
+		List<Sequence> list = new ArrayList<>();
+		for (int i = 0; i < sequences.length; i++) {
+			list.add(new Sequence("t" + i, sequences[i]));
+		}
+		Alignment data = new Alignment();
+		data.initByName("sequence", list, "dataType", "nucleotide");
+		return data;
+	}
+
+	/** store holding the given alignments as replicates, with the header of the first **/
+	public static ReplicateStore store(Alignment... alignments) {
+		ReplicateStore store = new ReplicateStore(alignments[0]);
+		for (Alignment alignment : alignments) {
+			store.add(alignment);
+		}
+		return store;
+	}
+
+	public static List<String> taxa(int taxonCount) {
+		List<String> taxa = new ArrayList<>();
+		for (int i = 0; i < taxonCount; i++) {
+			taxa.add("t" + i);
+		}
+		return taxa;
+	}
+
+	/** random tree with labels 1..taxonCount as in a tree log with a translate block, tips at different heights and rate annotations **/
+	public static String newick(int taxonCount, Random random) {
+		List<String> nodes = new ArrayList<>();
+		List<Double> heights = new ArrayList<>();
+		for (int i = 1; i <= taxonCount; i++) {
+			nodes.add(i + "");
+			heights.add(random.nextDouble() * 0.01);
+		}
+		double height = 0.01;
+		while (nodes.size() > 1) {
+			height += random.nextDouble() * 0.1;
+			int i = random.nextInt(nodes.size());
+			String left = nodes.remove(i);
+			double leftHeight = heights.remove(i);
+			int j = random.nextInt(nodes.size());
+			String right = nodes.remove(j);
+			double rightHeight = heights.remove(j);
+			nodes.add("(" + left + ":" + (height - leftHeight) + "," + right + "[&rate=" + (0.5 + random.nextDouble()) + "]:" + (height - rightHeight) + ")");
+			heights.add(height);
+		}
+		return nodes.get(0) + ";";
+	}
+
+	public static void assertSameReplicates(ReplicateStore expected, ReplicateStore actual) {
+		assertEquals(expected.getReplicateCount(), actual.getReplicateCount());
+		assertEquals(expected.getMaxPatternCount(), actual.getMaxPatternCount());
+		for (int i = 0; i < expected.getReplicateCount(); i++) {
+			ReplicateStore.Replicate e = expected.get(i);
+			ReplicateStore.Replicate a = actual.get(i);
+			assertEquals(e.getPatternCount(), a.getPatternCount());
+			assertArrayEquals(e.getWeights(), a.getWeights());
+			for (int j = 0; j < expected.getTaxonCount(); j++) {
+				for (int k = 0; k < e.getPatternCount(); k++) {
+					assertEquals(e.get(j, k), a.get(j, k));
+				}
+			}
+		}
+	}
+}
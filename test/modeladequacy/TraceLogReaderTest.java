@@ -0,0 +1,137 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TraceLogReaderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** trace log with entries 0..entryCount-1, where column posterior holds -entry and column x entry/10 **/
+	File log(int entryCount, String newline) throws IOException {
+		File file = folder.newFile();
+		PrintStream out = new PrintStream(file);
+		out.print("# generated by a test" + newline);
+		out.print(newline);
+		out.print("Sample\tposterior\tlabel\tx\t" + newline);
+		for (int i = 0; i < entryCount; i++) {
+			out.print(i * 1000 + "\t" + (-i) + "\tnot-a-number\t" + (i / 10.0) + "\t" + newline);
+			if (i == entryCount / 2) {
+				out.print("# comment half way" + newline);
+			}
+		}
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testBurnIn() throws IOException {
+		TraceLogReader reader = new TraceLogReader(log(10, "\n"), 20);
+		assertEquals(8, reader.getSampleCount());
+		assertEquals(4, reader.getLabels().size());
+		reader.require(reader.indexof("posterior"));
+		double [] values = new double[4];
+		reader.read(0, values);
+		assertEquals(-2, values[1], 0);
+		reader.read(7, values);
+		assertEquals(-9, values[1], 0);
+		reader.close();
+	}
+
+	@Test
+	public void testReadInAnyOrder() throws IOException {
+		TraceLogReader reader = new TraceLogReader(log(100, "\r\n"), 0);
+		assertEquals(100, reader.getSampleCount());
+		reader.require(reader.indexof("x"));
+		double [] values = new double[4];
+		for (int i : new int[]{99, 0, 50, 51, 49, 3, 3}) {
+			reader.read(i, values);
+			assertEquals(i / 10.0, values[3], 1e-12);
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testOnlyRequiredColumnsAreParsed() throws IOException {
+		TraceLogReader reader = new TraceLogReader(log(10, "\n"), 0);
+		assertEquals(-1, reader.indexof("y"));
+		reader.require(reader.indexof("Sample"));
+		reader.require(reader.indexof("x"));
+		double [] values = new double[]{-1, -1, -1, -1};
+		// column label would not parse as a number
+		reader.read(5, values);
+		assertEquals(5000, values[0], 0);
+		assertEquals(-1, values[1], 0);
+		assertEquals(-1, values[2], 0);
+		assertEquals(0.5, values[3], 1e-12);
+		reader.close();
+	}
+
+	@Test
+	public void testLinesLongerThanReadBuffer() throws IOException {
+		int columnCount = 2000;
+		File file = folder.newFile();
+		PrintStream out = new PrintStream(file);
+		StringBuilder header = new StringBuilder("Sample");
+		for (int j = 0; j < columnCount; j++) {
+			header.append("\tparameter.with.a.long.name." + j);
+		}
+		out.println(header);
+		for (int i = 0; i < 3; i++) {
+			StringBuilder row = new StringBuilder("" + i);
+			for (int j = 0; j < columnCount; j++) {
+				row.append("\t" + (i + j / 1000.0));
+			}
+			out.println(row);
+		}
+		out.close();
+
+		TraceLogReader reader = new TraceLogReader(file, 0);
+		assertEquals(columnCount + 1, reader.getLabels().size());
+		int last = reader.indexof("parameter.with.a.long.name." + (columnCount - 1));
+		reader.require(last);
+		double [] values = new double[columnCount + 1];
+		reader.read(2, values);
+		assertEquals(2 + (columnCount - 1) / 1000.0, values[last], 1e-12);
+		reader.close();
+	}
+
+	@Test
+	public void testConcurrentReads() throws Exception {
+		TraceLogReader reader = new TraceLogReader(log(1000, "\n"), 10);
+		reader.require(reader.indexof("posterior"));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				int thread = t;
+				futures.add(executor.submit(() -> {
+					double [] values = new double[4];
+					for (int i = thread; i < reader.getSampleCount(); i += 4) {
+						reader.read(i, values);
+						assertEquals(-(i + 100), values[1], 0);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			reader.close();
+		}
+	}
+}
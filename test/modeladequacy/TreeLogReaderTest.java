@@ -0,0 +1,96 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import beast.evolution.tree.Tree;
+
+public class TreeLogReaderTest {
+	final static int TAXON_COUNT = 6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** NEXUS tree log as BEAST writes it, with taxon names in a translate block **/
+	File log(List<String> newicks) throws IOException {
+		File file = folder.newFile();
+		PrintStream out = new PrintStream(file);
+		out.println("#NEXUS");
+		out.println();
+		out.println("Begin taxa;");
+		out.println("\tDimensions ntax=" + TAXON_COUNT + ";");
+		out.println("End;");
+		out.println("Begin trees;");
+		out.println("\tTranslate");
+		for (int i = 1; i <= TAXON_COUNT; i++) {
+			// one quoted name, and two entries on one line
+			String name = i == 3 ? "'t2'" : "t" + (i - 1);
+			out.print("\t\t" + i + " " + name + (i < TAXON_COUNT ? "," : ""));
+			if (i != 4) {
+				out.println();
+			}
+		}
+		out.println(";");
+		for (int i = 0; i < newicks.size(); i++) {
+			out.println("tree STATE_" + i * 1000 + " = [&R] " + newicks.get(i));
+		}
+		out.println("End;");
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testTranslateBlock() throws IOException {
+		TreeLogReader reader = new TreeLogReader(log(Arrays.asList("((1:1,2:1):1,(3:1,(4:0.5,(5:0.2,6:0.2):0.3):0.5):1);")), 0);
+		assertEquals(TestData.taxa(TAXON_COUNT), reader.getTaxa());
+		Tree tree = reader.read(0);
+		assertEquals(2 * TAXON_COUNT - 1, tree.getNodeCount());
+		for (int i = 0; i < TAXON_COUNT; i++) {
+			assertEquals("t" + i, tree.getNode(i).getID());
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testReadInAnyOrder() throws IOException {
+		Random random = new Random(127);
+		String [] newicks = new String[50];
+		for (int i = 0; i < newicks.length; i++) {
+			newicks[i] = TestData.newick(TAXON_COUNT, random);
+		}
+		TreeLogReader reader = new TreeLogReader(log(Arrays.asList(newicks)), 10);
+		assertEquals(45, reader.getSampleCount());
+		for (int i : new int[]{44, 0, 20, 21, 19, 7, 7}) {
+			assertEquals(newicks[i + 5], reader.readNewick(i));
+		}
+		reader.close();
+	}
+
+	@Test
+	public void testWithoutTranslateBlock() throws IOException {
+		File file = folder.newFile();
+		PrintStream out = new PrintStream(file);
+		out.println("#NEXUS");
+		out.println("Begin trees;");
+		out.println("tree STATE_0 = ((t0:1,t1:1):1,t2:2);");
+		out.println("tree STATE_1 = ((t1:1,t2:1):1,t0:2);");
+		out.println("End;");
+		out.close();
+		TreeLogReader reader = new TreeLogReader(file, 0);
+		assertNull(reader.getTaxa());
+		assertEquals(2, reader.getSampleCount());
+		assertEquals("((t1:1,t2:1):1,t0:2);", reader.readNewick(1));
+		reader.close();
+	}
+}
@@ -0,0 +1,102 @@
+package modeladequacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+public class TreeScannerTest {
+
+	static void assertSameTree(Tree expected, Tree actual) {
+		assertEquals(expected.getNodeCount(), actual.getNodeCount());
+		for (int i = 0; i < expected.getNodeCount(); i++) {
+			Node e = expected.getNode(i);
+			Node a = actual.getNode(i);
+			assertEquals(e.getHeight(), a.getHeight(), 1e-10);
+			if (e.isRoot()) {
+				assertTrue(a.isRoot());
+			} else {
+				assertEquals(e.getParent().getNr(), a.getParent().getNr());
+			}
+		}
+		assertEquals(expected.getRoot().getNr(), actual.getRoot().getNr());
+	}
+
+	@Test
+	public void testHeightsMatchTreeParser() {
+		int taxonCount = 20;
+		List<String> taxa = TestData.taxa(taxonCount);
+		Random random = new Random(127);
+		Tree tree = new TreeParser(taxa, TestData.newick(taxonCount, random), 1, false);
+		TreeScanner scanner = new TreeScanner(tree, taxa);
+		for (int i = 0; i < 50; i++) {
+			String newick = TestData.newick(taxonCount, random);
+			assertTrue(scanner.scan(newick, false));
+			scanner.assign();
+			assertSameTree(new TreeParser(taxa, newick, 1, false), tree);
+		}
+	}
+
+	@Test
+	public void testTaxonNames() {
+		List<String> taxa = TestData.taxa(4);
+		Tree tree = new TreeParser(taxa, "((1:1,2:1):1,(3:0.5,4:0.5):1.5);", 1, false);
+		TreeScanner scanner = new TreeScanner(tree, null);
+		assertTrue(scanner.scan("((t2:2,t0:2):1,(t3:1,t1:1):2);", false));
+		assertEquals(3, scanner.height[scanner.order[tree.getNodeCount() - 1]], 1e-12);
+		for (int i = 0; i < 4; i++) {
+			assertEquals(0, scanner.height[i], 1e-12);
+		}
+		assertEquals(scanner.parent[0], scanner.parent[2]);
+		assertEquals(scanner.parent[1], scanner.parent[3]);
+	}
+
+	@Test
+	public void testScaleByRate() {
+		List<String> taxa = TestData.taxa(3);
+		Tree tree = new TreeParser(taxa, "((1:1,2:1):1,3:2);", 1, false);
+		TreeScanner scanner = new TreeScanner(tree, taxa);
+		assertTrue(scanner.scan("((1[&rate=2]:1,2:2):1,3:3);", true));
+		// root as high as the longest (unscaled) path, heights below it go down by length times rate
+		int root = scanner.order[tree.getNodeCount() - 1];
+		assertEquals(3, scanner.height[root], 1e-12);
+		assertEquals(0, scanner.height[0], 1e-12);
+		assertEquals(0, scanner.height[2], 1e-12);
+	}
+
+	@Test
+	public void testMismatchedTreesAreRejected() {
+		List<String> taxa = TestData.taxa(3);
+		Tree tree = new TreeParser(taxa, "((1:1,2:1):1,3:2);", 1, false);
+		TreeScanner scanner = new TreeScanner(tree, taxa);
+		// unknown taxon
+		assertFalse(scanner.scan("((1:1,5:1):1,3:2);", false));
+		// missing taxon
+		assertFalse(scanner.scan("(1:1,2:1);", false));
+		// taxon twice
+		assertFalse(scanner.scan("((1:1,1:1):1,3:2);", false));
+	}
+
+	@Test
+	public void testQuotedLabelsAndWhitespace() {
+		List<String> taxa = TestData.taxa(3);
+		Tree tree = new TreeParser(taxa, "((1:1,2:1):1,3:2);", 1, false);
+		TreeScanner scanner = new TreeScanner(tree, null);
+		assertTrue(scanner.scan("(('t0':1, \"t1\"[&rate=1.5]:1)'internal label':2,\tt2:3);", true));
+		int root = scanner.order[tree.getNodeCount() - 1];
+		assertEquals(3, scanner.height[root], 1e-12);
+		assertEquals(1, scanner.height[scanner.parent[0]], 1e-12);
+		assertEquals(0, scanner.height[0], 1e-12);
+		// scaled by its rate
+		assertEquals(-0.5, scanner.height[1], 1e-12);
+		assertEquals(0, scanner.height[2], 1e-12);
+	}
+}